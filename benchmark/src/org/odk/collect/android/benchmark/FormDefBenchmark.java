@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+
+import org.javarosa.core.model.FormDef;
+import org.javarosa.core.util.externalizable.ExtUtil;
+import org.javarosa.xform.util.XFormUtils;
+import org.odk.collect.android.logic.FormDefPrototypes;
+
+/**
+ * Measures the javarosa paths the form loader depends on: parsing the form
+ * xml, serializing the FormDef and deserializing it again. It runs on a
+ * desktop JVM, outside of the app, over the forms of a corpus directory
+ * (benchmark/forms by default).
+ *
+ * Each step is warmed up and then timed per form. The mean and the fastest
+ * run, the bytes allocated per run (where the JVM reports them) and the heap
+ * retained by one deserialized FormDef are printed.
+ *
+ * Run it from the project directory, with javarosa, kxml2 and the jars in
+ * libs/ on the classpath. FormDefPrototypes is compiled along, it holds the
+ * serialization setup shared with the app:
+ *
+ * <pre>
+ * javac -cp "libs/*:javarosa.jar" -d build/benchmark \
+ *     src/org/odk/collect/android/logic/FormDefPrototypes.java \
+ *     benchmark/src/org/odk/collect/android/benchmark/FormDefBenchmark.java
+ * java -cp "build/benchmark:libs/*:javarosa.jar" \
+ *     org.odk.collect.android.benchmark.FormDefBenchmark [forms dir] [warmup] [iterations]
+ * </pre>
+ */
+public final class FormDefBenchmark {
+
+    private static final String DEFAULT_CORPUS = "benchmark/forms";
+    private static final int DEFAULT_WARMUP = 5;
+    private static final int DEFAULT_ITERATIONS = 20;
+
+    private FormDefBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        File corpus = new File(args.length > 0 ? args[0] : DEFAULT_CORPUS);
+        int warmup = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_WARMUP;
+        int iterations = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_ITERATIONS;
+
+        File[] forms = corpus.listFiles();
+        if (forms == null) {
+            System.err.println("No such corpus directory: " + corpus.getAbsolutePath());
+            System.exit(1);
+        }
+        Arrays.sort(forms);
+
+        initializeJavaRosa();
+
+        System.out.println("warmup: " + warmup + ", iterations: " + iterations);
+        boolean failed = false;
+        for (File form : forms) {
+            if (!form.getName().endsWith(".xml")) {
+                continue;
+            }
+            try {
+                run(form, warmup, iterations);
+            } catch (Exception e) {
+                System.err.println(form.getName() + ": " + e);
+                failed = true;
+            }
+        }
+        if (failed) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Registers the same prototypes as FormController.initializeJavaRosa does
+     * before forms are serialized.
+     */
+    private static void initializeJavaRosa() {
+        FormDefPrototypes.register();
+    }
+
+    private static void run(File form, int warmup, int iterations) throws Exception {
+        final byte[] xml = readFully(form);
+
+        Step parse = new Step("parse") {
+            @Override
+            Object run() {
+                return XFormUtils.getFormFromInputStream(new ByteArrayInputStream(xml));
+            }
+        };
+        final FormDef fd = (FormDef) parse.measure(warmup, iterations);
+        if (fd == null) {
+            throw new IOException("the form could not be parsed");
+        }
+
+        Step serialize = new Step("serialize") {
+            @Override
+            Object run() throws IOException {
+                return serialize(fd);
+            }
+        };
+        final byte[] payload = (byte[]) serialize.measure(warmup, iterations);
+
+        Step deserialize = new Step("deserialize") {
+            @Override
+            Object run() throws Exception {
+                return deserialize(payload);
+            }
+        };
+        deserialize.measure(warmup, iterations);
+
+        System.out.println(form.getName() + ": " + xml.length + " bytes of xml, " + payload.length
+                + " bytes serialized, " + measureRetainedHeap(payload) + " bytes retained");
+        System.out.println("  " + parse);
+        System.out.println("  " + serialize);
+        System.out.println("  " + deserialize);
+    }
+
+    private static byte[] serialize(FormDef fd) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(payload);
+        fd.writeExternal(dos);
+        dos.flush();
+        return payload.toByteArray();
+    }
+
+    private static FormDef deserialize(byte[] payload) throws Exception {
+        FormDef fd = new FormDef();
+        fd.readExternal(new DataInputStream(new ByteArrayInputStream(payload)),
+                ExtUtil.defaultPrototypes());
+        return fd;
+    }
+
+    /**
+     * @return how much the used heap grows while a deserialized FormDef is
+     *         held, a rough figure since the collector may not run to
+     *         completion
+     */
+    private static long measureRetainedHeap(byte[] payload) throws Exception {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        long before = runtime.totalMemory() - runtime.freeMemory();
+        FormDef held = deserialize(payload);
+        System.gc();
+        long after = runtime.totalMemory() - runtime.freeMemory();
+        if (held == null) {
+            return 0;
+        }
+        return Math.max(0, after - before);
+    }
+
+    private static byte[] readFully(File file) throws IOException {
+        InputStream is = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) file.length());
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                bytes.write(buffer, 0, read);
+            }
+            return bytes.toByteArray();
+        } finally {
+            is.close();
+        }
+    }
+
+    private static abstract class Step {
+        private final String name;
+        private double meanMillis;
+        private double minMillis;
+        private long allocatedBytes = -1;
+
+        Step(String name) {
+            this.name = name;
+        }
+
+        abstract Object run() throws Exception;
+
+        /**
+         * @return the result of the last run
+         */
+        Object measure(int warmup, int iterations) throws Exception {
+            for (int i = 0; i < warmup; i++) {
+                run();
+            }
+
+            Object result = null;
+            long total = 0;
+            long min = Long.MAX_VALUE;
+            long allocatedBefore = getAllocatedBytes();
+            for (int i = 0; i < iterations; i++) {
+                long start = System.nanoTime();
+                result = run();
+                long elapsed = System.nanoTime() - start;
+                total += elapsed;
+                min = Math.min(min, elapsed);
+            }
+            long allocatedAfter = getAllocatedBytes();
+            meanMillis = total / 1e6 / iterations;
+            minMillis = min / 1e6;
+            if (allocatedBefore != -1 && allocatedAfter != -1) {
+                allocatedBytes = (allocatedAfter - allocatedBefore) / iterations;
+            }
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-12s mean %9.3fms, min %9.3fms, %s", name, meanMillis, minMillis,
+                    allocatedBytes == -1 ? "allocations not reported"
+                            : allocatedBytes + " bytes allocated per run");
+        }
+    }
+
+    /**
+     * @return the bytes allocated by the current thread so far, or -1 if the
+     *         JVM does not report them
+     */
+    private static long getAllocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean sunThreads = (com.sun.management.ThreadMXBean) threads;
+            if (sunThreads.isThreadAllocatedMemorySupported()) {
+                if (!sunThreads.isThreadAllocatedMemoryEnabled()) {
+                    sunThreads.setThreadAllocatedMemoryEnabled(true);
+                }
+                return sunThreads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+}
@@ -30,6 +30,7 @@ import org.javarosa.form.api.FormEntryController;
 import org.javarosa.form.api.FormEntryPrompt;
 import org.odk.collect.android.R;
 import org.odk.collect.android.application.Collect;
+import org.odk.collect.android.database.FormLoadMetricsLogger;
 import org.odk.collect.android.exception.JavaRosaException;
 import org.odk.collect.android.listeners.AdvanceToNextListener;
 import org.odk.collect.android.listeners.FormLoaderListener;
@@ -37,12 +38,14 @@ import org.odk.collect.android.listeners.FormSavedListener;
 import org.odk.collect.android.listeners.SavePointListener;
 import org.odk.collect.android.logic.FormController;
 import org.odk.collect.android.logic.FormController.FailedConstraint;
+import org.odk.collect.android.logic.FormLoadMetrics;
 import org.odk.collect.android.preferences.AdminPreferencesActivity;
 import org.odk.collect.android.preferences.PreferencesActivity;
 import org.odk.collect.android.provider.FormsProviderAPI.FormsColumns;
 import org.odk.collect.android.provider.InstanceProviderAPI;
 import org.odk.collect.android.provider.InstanceProviderAPI.InstanceColumns;
 import org.odk.collect.android.tasks.FormLoaderTask;
+import org.odk.collect.android.tasks.FormPrecompiler;
 import org.odk.collect.android.tasks.SavePointTask;
 import org.odk.collect.android.tasks.SaveResult;
 import org.odk.collect.android.tasks.SaveToDiskTask;
@@ -207,6 +210,10 @@ public class FormEntryActivity extends Activity implements AnimationListener,
 	private int viewCount = 0;
 
 	private FormLoaderTask mFormLoaderTask;
+	// timings of the form open, until its first view has been shown
+	private FormLoadMetrics mLoadMetrics;
+	// the timings of the form open, until they are written next to the instance
+	private FormLoadMetrics mUnsavedLoadMetrics;
 	private SaveToDiskTask mSaveToDiskTask;
 
 	private ImageButton mNextButton;
@@ -225,6 +232,10 @@ public class FormEntryActivity extends Activity implements AnimationListener,
 	public void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
 
+		// the precompiler waits until this form session is over, also while
+		// the form is loading or the screen is rotated
+		FormPrecompiler.setFormSessionActive(true);
+
 		// must be at the beginning of any activity that can be called from an
 		// external intent
 		try {
@@ -743,7 +754,12 @@ public class FormEntryActivity extends Activity implements AnimationListener,
 		if (event == FormEntryController.EVENT_PROMPT_NEW_REPEAT) {
 			createRepeatDialog();
 		} else {
+			long start = System.currentTimeMillis();
 			View current = createView(event, false);
+			if (mLoadMetrics != null) {
+				mLoadMetrics.record(FormLoadMetrics.PHASE_FIRST_VIEW,
+						System.currentTimeMillis() - start);
+			}
 			showView(current, AnimationType.FADE);
 		}
 	}
@@ -2291,6 +2307,9 @@ public class FormEntryActivity extends Activity implements AnimationListener,
 				mSaveToDiskTask = null;
 			}
 		}
+		if (isFinishing()) {
+			FormPrecompiler.setFormSessionActive(false);
+		}
 
 		super.onDestroy();
 
@@ -2354,6 +2373,9 @@ public class FormEntryActivity extends Activity implements AnimationListener,
 	 */
 	@Override
 	public void loadingComplete(FormLoaderTask task) {
+		long start = System.currentTimeMillis();
+		mLoadMetrics = new FormLoadMetrics(mFormPath, task.getFormHash(),
+				task.getStageTimings());
 		dismissDialog(PROGRESS_DIALOG);
 
 		FormController formController = task.getFormController();
@@ -2410,6 +2432,7 @@ public class FormEntryActivity extends Activity implements AnimationListener,
 			refreshCurrentView();
 			// process the pending activity request...
 			onActivityResult(requestCode, resultCode, intent);
+			finishLoadMetrics(formController, start);
 			return;
 		}
 
@@ -2456,12 +2479,56 @@ public class FormEntryActivity extends Activity implements AnimationListener,
 				// view
 				Intent i = new Intent(this, FormHierarchyActivity.class);
 				startActivity(i);
+				finishLoadMetrics(formController, start);
 				return; // so we don't show the intro screen before jumping to
 						// the hierarchy
 			}
 		}
 
 		refreshCurrentView();
+		finishLoadMetrics(formController, start);
+	}
+
+	/**
+	 * Records how long loadingComplete() took and stores the timings of the
+	 * whole form open. If logging is enabled, the timings are also shown.
+	 */
+	private void finishLoadMetrics(FormController formController, long start) {
+		if (mLoadMetrics == null) {
+			return;
+		}
+		FormLoadMetrics metrics = mLoadMetrics;
+		mLoadMetrics = null;
+
+		metrics.record(FormLoadMetrics.PHASE_LOADING_COMPLETE,
+				System.currentTimeMillis() - start);
+		if (formController.getInstancePath() != null) {
+			metrics.setInstancePath(formController.getInstancePath()
+					.getAbsolutePath());
+		}
+		Log.i(t, "Form open timings:\n" + metrics);
+		FormLoadMetricsLogger.recordInBackground(metrics);
+		mUnsavedLoadMetrics = metrics;
+
+		if (FormLoadMetricsLogger.isDebugEnabled()) {
+			Toast.makeText(this, metrics.toString(), Toast.LENGTH_LONG).show();
+		}
+	}
+
+	/**
+	 * Writes the timings of the form open next to the instance, once per
+	 * session, on the first save.
+	 */
+	private void exportLoadMetrics() {
+		FormController formController = Collect.getInstance()
+				.getFormController();
+		if (mUnsavedLoadMetrics == null || formController == null
+				|| formController.getInstancePath() == null) {
+			return;
+		}
+		FormLoadMetricsLogger.exportForInstanceInBackground(mUnsavedLoadMetrics,
+				formController.getInstancePath());
+		mUnsavedLoadMetrics = null;
 	}
 
 	/**
@@ -2490,11 +2557,13 @@ public class FormEntryActivity extends Activity implements AnimationListener,
 			Toast.makeText(this, getString(R.string.data_saved_ok),
 					Toast.LENGTH_SHORT).show();
 			sendSavedBroadcast();
+			exportLoadMetrics();
 			break;
 		case SaveToDiskTask.SAVED_AND_EXIT:
 			Toast.makeText(this, getString(R.string.data_saved_ok),
 					Toast.LENGTH_SHORT).show();
 			sendSavedBroadcast();
+			exportLoadMetrics();
 			finishReturnInstance();
 			break;
 		case SaveToDiskTask.SAVE_ERROR:
@@ -19,10 +19,13 @@ import java.io.File;
 import org.odk.collect.android.R;
 import org.odk.collect.android.database.ActivityLogger;
 import org.odk.collect.android.external.ExternalDataManager;
+import org.odk.collect.android.external.ExternalDataRowCache;
 import org.odk.collect.android.logic.FormController;
 import org.odk.collect.android.logic.PropertyManager;
 import org.odk.collect.android.preferences.PreferencesActivity;
 import org.odk.collect.android.utilities.AgingCredentialsProvider;
+import org.odk.collect.android.utilities.FormDefMemoryCache;
+import org.odk.collect.android.utilities.ItemsetResultCache;
 import org.opendatakit.httpclientandroidlib.client.CookieStore;
 import org.opendatakit.httpclientandroidlib.client.CredentialsProvider;
 import org.opendatakit.httpclientandroidlib.client.protocol.ClientContext;
@@ -229,4 +232,20 @@ public class Collect extends Application {
                 mgr.getSingularProperty(PropertyManager.DEVICE_ID_PROPERTY));
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        FormDefMemoryCache.trimMemory(level);
+        ItemsetResultCache.trimMemory(level);
+        ExternalDataRowCache.trimMemory(level);
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        FormDefMemoryCache.clear();
+        ItemsetResultCache.clear();
+        ExternalDataRowCache.clear();
+    }
+
 }
@@ -0,0 +1,366 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.database;
+
+import java.io.File;
+
+import org.odk.collect.android.application.Collect;
+import org.odk.collect.android.utilities.FileUtils;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+/**
+ * Persistent index of form files to their md5, which names their cached
+ * .formdef file.
+ *
+ * An entry is keyed by the absolute path of the form and remembers the size
+ * and last modified time of the file when its md5 was computed. As long as
+ * neither changes, the md5 is served from the index and the form file does
+ * not have to be read at all.
+ *
+ * The database also records when each .formdef file was last used, so the
+ * cache can be trimmed least recently used first, and the external data
+ * lookups found in each form, so a form is only scanned for them once, and
+ * the state of the data files in each media folder, so an unchanged folder
+ * is not checked for data to import on every disk sync.
+ *
+ * The index database will be "/sdcard/odk/metadata/formdefcache.db"
+ */
+public class FormDefCacheDbAdapter {
+
+    public static final String KEY_ID = "_id";
+    public static final String KEY_PATH = "path";
+    public static final String KEY_SIZE = "size";
+    public static final String KEY_LAST_MODIFIED = "last_modified";
+    public static final String KEY_MD5 = "md5";
+    public static final String KEY_LAST_ACCESS = "last_access";
+    public static final String KEY_LOOKUPS = "lookups";
+    public static final String KEY_STATE = "state";
+
+    private static final String TAG = "FormDefCacheDbAdapter";
+
+    private static final String DATABASE_NAME = "formdefcache.db";
+    private static final String DATABASE_TABLE = "formdef_cache";
+    private static final String ACCESS_TABLE = "formdef_access";
+    private static final String LOOKUPS_TABLE = "external_data_lookups";
+    private static final String MEDIA_TABLE = "media_state";
+    private static final int DATABASE_VERSION = 5;
+
+    private static final String CREATE_CACHE_TABLE =
+            "create table " + DATABASE_TABLE + " (" + KEY_ID + " integer primary key autoincrement, "
+                    + KEY_PATH + " text not null unique, "
+                    + KEY_SIZE + " integer not null, "
+                    + KEY_LAST_MODIFIED + " integer not null, "
+                    + KEY_MD5 + " text not null "
+                    + ");";
+
+    private static final String CREATE_ACCESS_TABLE =
+            "create table " + ACCESS_TABLE + " (" + KEY_MD5 + " text primary key, "
+                    + KEY_LAST_ACCESS + " integer not null "
+                    + ");";
+
+    private static final String CREATE_LOOKUPS_TABLE =
+            "create table " + LOOKUPS_TABLE + " (" + KEY_MD5 + " text primary key, "
+                    + KEY_LOOKUPS + " text not null "
+                    + ");";
+
+    private static final String CREATE_MEDIA_TABLE =
+            "create table " + MEDIA_TABLE + " (" + KEY_PATH + " text primary key, "
+                    + KEY_STATE + " integer not null "
+                    + ");";
+
+    // how often the md5 could be served from the index, since process start
+    private static int sFastPathHits = 0;
+    private static int sFastPathMisses = 0;
+
+    private DatabaseHelper mDbHelper;
+    private SQLiteDatabase mDb;
+
+    /**
+     * This class helps open, create, and upgrade the database file.
+     */
+    private static class DatabaseHelper extends ODKSQLiteOpenHelper {
+        DatabaseHelper() {
+            super(Collect.METADATA_PATH, DATABASE_NAME, null, DATABASE_VERSION);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL(CREATE_CACHE_TABLE);
+            db.execSQL(CREATE_ACCESS_TABLE);
+            db.execSQL(CREATE_LOOKUPS_TABLE);
+            db.execSQL(CREATE_MEDIA_TABLE);
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
+                    + newVersion + ", which will destroy all old data");
+            // the index only ever holds derived data, so it is safe to rebuild it
+            db.execSQL("DROP TABLE IF EXISTS " + DATABASE_TABLE);
+            db.execSQL("DROP TABLE IF EXISTS " + ACCESS_TABLE);
+            db.execSQL("DROP TABLE IF EXISTS " + LOOKUPS_TABLE);
+            db.execSQL("DROP TABLE IF EXISTS " + MEDIA_TABLE);
+            onCreate(db);
+        }
+    }
+
+    public FormDefCacheDbAdapter() {
+    }
+
+    /**
+     * Open the database. If it cannot be opened, try to create a new instance
+     * of the database. If it cannot be created, throw an exception to signal
+     * the failure
+     *
+     * @return this (self reference, allowing this to be chained in an
+     *         initialization call)
+     * @throws SQLException if the database could be neither opened or created
+     */
+    public FormDefCacheDbAdapter open() throws SQLException {
+        mDbHelper = new DatabaseHelper();
+        mDb = mDbHelper.getWritableDatabase();
+        return this;
+    }
+
+    public void close() {
+        mDbHelper.close();
+    }
+
+    /**
+     * Returns the md5 recorded for the form file, or null if the file is not in
+     * the index or its size or last modified time no longer match the entry.
+     */
+    public String getCachedMd5(File formXml) {
+        String md5 = readCachedMd5(formXml);
+        recordLookup(md5 != null);
+        return md5;
+    }
+
+    /**
+     * Like {@link #getCachedMd5(File)}, but not counted in the fast path
+     * statistics, for lookups the form loader does not depend on.
+     */
+    public String peekCachedMd5(File formXml) {
+        return readCachedMd5(formXml);
+    }
+
+    private String readCachedMd5(File formXml) {
+        String md5 = null;
+        String selection = KEY_PATH + "=?";
+        String[] selectionArgs = {
+            formXml.getAbsolutePath()
+        };
+        Cursor c = mDb.query(DATABASE_TABLE, null, selection, selectionArgs, null, null, null);
+        try {
+            if (c.moveToFirst()) {
+                long size = c.getLong(c.getColumnIndex(KEY_SIZE));
+                long lastModified = c.getLong(c.getColumnIndex(KEY_LAST_MODIFIED));
+                if (size == formXml.length() && lastModified == formXml.lastModified()) {
+                    md5 = c.getString(c.getColumnIndex(KEY_MD5));
+                }
+            }
+        } finally {
+            c.close();
+        }
+        return md5;
+    }
+
+    /**
+     * Returns the md5 of the form file, from the index when the file is
+     * unchanged, otherwise by hashing the file and updating the index.
+     */
+    public String getMd5Hash(File formXml) {
+        String md5 = getCachedMd5(formXml);
+        if (md5 == null) {
+            md5 = FileUtils.getMd5Hash(formXml);
+            if (md5 != null) {
+                updateEntry(formXml, md5);
+            }
+        }
+        return md5;
+    }
+
+    /**
+     * Records the md5 of the form file along with its current size and last
+     * modified time.
+     */
+    public void updateEntry(File formXml, String md5) {
+        ContentValues cv = new ContentValues();
+        cv.put(KEY_PATH, formXml.getAbsolutePath());
+        cv.put(KEY_SIZE, formXml.length());
+        cv.put(KEY_LAST_MODIFIED, formXml.lastModified());
+        cv.put(KEY_MD5, md5);
+
+        String where = KEY_PATH + "=?";
+        String[] whereArgs = {
+            formXml.getAbsolutePath()
+        };
+        if (mDb.update(DATABASE_TABLE, cv, where, whereArgs) == 0) {
+            mDb.insert(DATABASE_TABLE, null, cv);
+        }
+    }
+
+    /**
+     * Forget the form file at this path, once the form is deleted.
+     */
+    public void delete(String path) {
+        String where = KEY_PATH + "=?";
+        String[] whereArgs = {
+            path
+        };
+        mDb.delete(DATABASE_TABLE, where, whereArgs);
+    }
+
+    /**
+     * Records that the .formdef file of the form with this md5 was just used.
+     */
+    public void recordAccess(String md5) {
+        ContentValues cv = new ContentValues();
+        cv.put(KEY_MD5, md5);
+        cv.put(KEY_LAST_ACCESS, System.currentTimeMillis());
+
+        String where = KEY_MD5 + "=?";
+        String[] whereArgs = {
+            md5
+        };
+        if (mDb.update(ACCESS_TABLE, cv, where, whereArgs) == 0) {
+            mDb.insert(ACCESS_TABLE, null, cv);
+        }
+    }
+
+    /**
+     * @return when the .formdef file of the form with this md5 was last used,
+     *         or 0 if that is not known
+     */
+    public long getLastAccess(String md5) {
+        String selection = KEY_MD5 + "=?";
+        String[] selectionArgs = {
+            md5
+        };
+        String[] projection = {
+            KEY_LAST_ACCESS
+        };
+        Cursor c = mDb.query(ACCESS_TABLE, projection, selection, selectionArgs, null, null, null);
+        try {
+            return c.moveToFirst() ? c.getLong(0) : 0;
+        } finally {
+            c.close();
+        }
+    }
+
+    public void deleteAccess(String md5) {
+        String where = KEY_MD5 + "=?";
+        String[] whereArgs = {
+            md5
+        };
+        mDb.delete(ACCESS_TABLE, where, whereArgs);
+    }
+
+    /**
+     * @return the external data lookups recorded for the form with this md5,
+     *         one per line, or null if the form has not been scanned
+     */
+    public String getExternalDataLookups(String md5) {
+        String selection = KEY_MD5 + "=?";
+        String[] selectionArgs = {
+            md5
+        };
+        String[] projection = {
+            KEY_LOOKUPS
+        };
+        Cursor c = mDb.query(LOOKUPS_TABLE, projection, selection, selectionArgs, null, null, null);
+        try {
+            return c.moveToFirst() ? c.getString(0) : null;
+        } finally {
+            c.close();
+        }
+    }
+
+    public void setExternalDataLookups(String md5, String lookups) {
+        ContentValues cv = new ContentValues();
+        cv.put(KEY_MD5, md5);
+        cv.put(KEY_LOOKUPS, lookups);
+        mDb.replace(LOOKUPS_TABLE, null, cv);
+    }
+
+    public void deleteExternalDataLookups(String md5) {
+        String where = KEY_MD5 + "=?";
+        String[] whereArgs = {
+            md5
+        };
+        mDb.delete(LOOKUPS_TABLE, where, whereArgs);
+    }
+
+    /**
+     * @return the state recorded for the data files of the media folder at
+     *         this path, or 0 if none is recorded
+     */
+    public long getMediaState(String path) {
+        String selection = KEY_PATH + "=?";
+        String[] selectionArgs = {
+            path
+        };
+        String[] projection = {
+            KEY_STATE
+        };
+        Cursor c = mDb.query(MEDIA_TABLE, projection, selection, selectionArgs, null, null, null);
+        try {
+            return c.moveToFirst() ? c.getLong(0) : 0;
+        } finally {
+            c.close();
+        }
+    }
+
+    public void setMediaState(String path, long state) {
+        ContentValues cv = new ContentValues();
+        cv.put(KEY_PATH, path);
+        cv.put(KEY_STATE, state);
+        mDb.replace(MEDIA_TABLE, null, cv);
+    }
+
+    public void deleteMediaState(String path) {
+        String where = KEY_PATH + "=?";
+        String[] whereArgs = {
+            path
+        };
+        mDb.delete(MEDIA_TABLE, where, whereArgs);
+    }
+
+    public static String getFormDefPath(String md5) {
+        return Collect.CACHE_PATH + File.separator + md5 + ".formdef";
+    }
+
+    private static synchronized void recordLookup(boolean hit) {
+        if (hit) {
+            sFastPathHits++;
+        } else {
+            sFastPathMisses++;
+        }
+    }
+
+    public static synchronized int getFastPathHits() {
+        return sFastPathHits;
+    }
+
+    public static synchronized int getFastPathMisses() {
+        return sFastPathMisses;
+    }
+
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.database;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.io.IOUtils;
+import org.odk.collect.android.application.Collect;
+import org.odk.collect.android.logic.FormLoadMetrics;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+/**
+ * Stores how long each phase of opening a form took, one row per phase, so
+ * open latency can be charted per form version (form md5).
+ *
+ * The metrics database will be "/sdcard/odk/log/formLoadMetrics.db" and keeps
+ * the latest {@link #MAX_ROWS} phases. It can be exported as csv with
+ * {@link #exportToCsv(File)}. When "/sdcard/odk/log/enabled" exists, the
+ * timings are also shown on screen when a form opens.
+ *
+ * When an instance is saved, the timings of the open that led to it are also
+ * written next to it, see {@link #exportForInstanceInBackground(FormLoadMetrics, File)}.
+ */
+public class FormLoadMetricsLogger {
+
+    private static final String TAG = "FormLoadMetricsLogger";
+
+    private static final String DATABASE_NAME = "formLoadMetrics.db";
+    private static final String DATABASE_TABLE = "form_load";
+    private static final int DATABASE_VERSION = 2;
+    private static final String ENABLE_DEBUG = "enabled";
+
+    // phases kept in the database, the oldest are dropped first
+    private static final int MAX_ROWS = 5000;
+
+    // Database columns
+    private static final String ID = "_id";
+    private static final String TIMESTAMP = "timestamp";
+    private static final String FORM_PATH = "form_path";
+    private static final String FORM_MD5 = "form_md5";
+    private static final String INSTANCE_PATH = "instance_path";
+    private static final String PHASE = "phase";
+    private static final String DURATION = "duration";
+    private static final String EXPORTED = "exported";
+
+    private static final String DATABASE_CREATE =
+            "create table " + DATABASE_TABLE + " (" +
+            ID + " integer primary key autoincrement, " +
+            TIMESTAMP + " integer not null, " +
+            FORM_PATH + " text not null, " +
+            FORM_MD5 + " text, " +
+            INSTANCE_PATH + " text, " +
+            PHASE + " text not null, " +
+            DURATION + " integer not null, " +
+            EXPORTED + " integer not null default 0);";
+
+    private static final String[] COLUMNS = {
+            TIMESTAMP, FORM_PATH, FORM_MD5, INSTANCE_PATH, PHASE, DURATION
+    };
+
+    // records one form open at a time, off the main thread
+    private static final Executor sRecorder = Executors.newSingleThreadExecutor();
+
+    private DatabaseHelper mDbHelper;
+    private SQLiteDatabase mDb;
+
+    /**
+     * This class helps open, create, and upgrade the database file.
+     */
+    private static class DatabaseHelper extends ODKSQLiteOpenHelper {
+        DatabaseHelper() {
+            super(Collect.LOG_PATH, DATABASE_NAME, null, DATABASE_VERSION);
+            new File(Collect.LOG_PATH).mkdirs();
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL(DATABASE_CREATE);
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            db.execSQL("DROP TABLE IF EXISTS " + DATABASE_TABLE);
+            onCreate(db);
+        }
+    }
+
+    public FormLoadMetricsLogger open() throws SQLException {
+        mDbHelper = new DatabaseHelper();
+        mDb = mDbHelper.getWritableDatabase();
+        return this;
+    }
+
+    public void close() {
+        mDbHelper.close();
+    }
+
+    public void log(FormLoadMetrics metrics) {
+        long now = System.currentTimeMillis();
+        mDb.beginTransaction();
+        try {
+            for (Map.Entry<String, Long> phase : metrics.getPhases().entrySet()) {
+                ContentValues cv = new ContentValues();
+                cv.put(TIMESTAMP, now);
+                cv.put(FORM_PATH, metrics.getFormPath());
+                cv.put(FORM_MD5, metrics.getFormHash());
+                cv.put(INSTANCE_PATH, metrics.getInstancePath());
+                cv.put(PHASE, phase.getKey());
+                cv.put(DURATION, phase.getValue());
+                mDb.insert(DATABASE_TABLE, null, cv);
+            }
+            mDb.delete(DATABASE_TABLE, ID + " <= (select max(" + ID + ") from "
+                    + DATABASE_TABLE + ") - " + MAX_ROWS, null);
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+
+    /**
+     * Appends the phases recorded since the last export to a csv file. If the
+     * file does not exist yet, every stored phase is written.
+     *
+     * @param csvFile destination file
+     * @return true if the file was written
+     */
+    public boolean exportToCsv(File csvFile) {
+        boolean append = csvFile.exists();
+        long lastId = DatabaseUtils.longForQuery(mDb, "select ifnull(max(" + ID + "), 0) from "
+                + DATABASE_TABLE, null);
+        String selection = ID + "<=" + lastId;
+        if (append) {
+            selection += " and " + EXPORTED + "=0";
+        }
+
+        FileWriter writer = null;
+        Cursor c = null;
+        try {
+            writer = new FileWriter(csvFile, append);
+            if (!append) {
+                writeCsvHeader(writer);
+            }
+
+            c = mDb.query(DATABASE_TABLE, COLUMNS, selection, null, null, null, ID);
+            String[] values = new String[COLUMNS.length];
+            while (c.moveToNext()) {
+                for (int i = 0; i < COLUMNS.length; i++) {
+                    values[i] = c.getString(i);
+                }
+                writeCsvRow(writer, values);
+            }
+            writer.close();
+
+            ContentValues cv = new ContentValues();
+            cv.put(EXPORTED, 1);
+            mDb.update(DATABASE_TABLE, cv, ID + "<=" + lastId, null);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to export " + csvFile.getAbsolutePath(), e);
+            return false;
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+            IOUtils.closeQuietly(writer);
+        }
+    }
+
+    private static void writeCsvHeader(Writer writer) throws IOException {
+        for (int i = 0; i < COLUMNS.length; i++) {
+            writer.write(i == 0 ? COLUMNS[i] : "," + COLUMNS[i]);
+        }
+        writer.write("\n");
+    }
+
+    private static void writeCsvRow(Writer writer, String[] values) throws IOException {
+        for (int i = 0; i < values.length; i++) {
+            if (i != 0) {
+                writer.write(",");
+            }
+            if (values[i] != null) {
+                writer.write("\"" + values[i].replace("\"", "\"\"") + "\"");
+            }
+        }
+        writer.write("\n");
+    }
+
+    /**
+     * @return the csv the metrics of an instance are written to. It starts
+     *         with a dot, so the uploaders skip it along with the other hidden
+     *         files of the instance folder.
+     */
+    public static File getInstanceMetricsFile(File instanceFile) {
+        return new File(instanceFile.getParentFile(), "." + instanceFile.getName()
+                + ".metrics.csv");
+    }
+
+    /**
+     * Appends the phases of a form open to the metrics csv of the instance it
+     * was saved as, on the background thread.
+     */
+    public static void exportForInstanceInBackground(final FormLoadMetrics metrics,
+            final File instanceFile) {
+        sRecorder.execute(new Runnable() {
+            @Override
+            public void run() {
+                exportForInstance(metrics, instanceFile);
+            }
+        });
+    }
+
+    private static void exportForInstance(FormLoadMetrics metrics, File instanceFile) {
+        File csvFile = getInstanceMetricsFile(instanceFile);
+        boolean append = csvFile.exists();
+        String now = Long.toString(System.currentTimeMillis());
+        FileWriter writer = null;
+        try {
+            writer = new FileWriter(csvFile, append);
+            if (!append) {
+                writeCsvHeader(writer);
+            }
+            for (Map.Entry<String, Long> phase : metrics.getPhases().entrySet()) {
+                writeCsvRow(writer, new String[] {
+                        now, metrics.getFormPath(), metrics.getFormHash(),
+                        instanceFile.getAbsolutePath(), phase.getKey(),
+                        Long.toString(phase.getValue())
+                });
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to export " + csvFile.getAbsolutePath(), e);
+        } finally {
+            IOUtils.closeQuietly(writer);
+        }
+    }
+
+    /**
+     * Records the metrics of a form open on a background thread, so the main
+     * thread never waits on the database.
+     */
+    public static void recordInBackground(final FormLoadMetrics metrics) {
+        sRecorder.execute(new Runnable() {
+            @Override
+            public void run() {
+                record(metrics);
+            }
+        });
+    }
+
+    /**
+     * Records the metrics of a form open. When debugging is enabled, the new
+     * phases are also exported next to the database.
+     */
+    public static void record(FormLoadMetrics metrics) {
+        FormLoadMetricsLogger logger = new FormLoadMetricsLogger();
+        try {
+            logger.open();
+            logger.log(metrics);
+            if (isDebugEnabled()) {
+                logger.exportToCsv(new File(Collect.LOG_PATH, "formLoadMetrics.csv"));
+            }
+        } catch (SQLException e) {
+            Log.e(TAG, "Unable to record form load metrics", e);
+        } finally {
+            logger.close();
+        }
+    }
+
+    public static boolean isDebugEnabled() {
+        return new File(Collect.LOG_PATH, ENABLE_DEBUG).exists();
+    }
+}
@@ -4,18 +4,36 @@ package org.odk.collect.android.database;
 import java.math.BigInteger;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 import org.odk.collect.android.application.Collect;
 
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
 
+/**
+ * Holds the rows of the itemsets.csv files of the forms.
+ *
+ * Each table is named after the md5 of the csv it was imported from, and the
+ * itemsets table records which itemsets.csv path uses which table. Forms that
+ * ship identical itemsets.csv files therefore share a single table, which is
+ * only dropped once no path refers to it anymore.
+ */
 public class ItemsetDbAdapter {
 
     public static final String KEY_ID = "_id";
+    // the position of a row in its csv, the itemset queries order by it
+    public static final String KEY_ORDER = "_order";
 
     private static final String TAG = "ItemsetDbAdapter";
     private DatabaseHelper mDbHelper;
@@ -23,7 +41,17 @@ public class ItemsetDbAdapter {
 
     private static final String DATABASE_NAME = "itemsets.db";
     private static final String DATABASE_TABLE = "itemset_";
-    private static final int DATABASE_VERSION = 2;
+    private static final int DATABASE_VERSION = 4;
+
+    // rows inserted between two commits of a bulk load
+    private static final int BULK_LOAD_BATCH_SIZE = 5000;
+
+    // distance between the _order of consecutive rows of a bulk load, which
+    // leaves room to insert rows between them when the csv is updated
+    private static final long ORDER_GAP = 1024;
+
+    // the column every itemset query filters on first
+    private static final String LIST_NAME = "list_name";
 
     private static final String ITEMSET_TABLE = "itemsets";
     private static final String KEY_ITEMSET_HASH = "hash";
@@ -54,16 +82,22 @@ public class ItemsetDbAdapter {
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
             Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
                     + newVersion + ", which will destroy all old data");
-            // first drop all of our generated itemset tables
-            Cursor c = db.query(ITEMSET_TABLE, null, null, null, null, null, null);
+            // first drop all of our generated itemset tables, whatever they
+            // were named after
+            List<String> tables = new ArrayList<String>();
+            Cursor c = db.rawQuery("select name from sqlite_master where type='table'", null);
             if (c != null) {
-                c.move(-1);
                 while (c.moveToNext()) {
-                    String table = c.getString(c.getColumnIndex(KEY_ITEMSET_HASH));
-                    db.execSQL("DROP TABLE IF EXISTS " + DATABASE_TABLE + table);
+                    String table = c.getString(0);
+                    if (table.startsWith(DATABASE_TABLE)) {
+                        tables.add(table);
+                    }
                 }
                 c.close();
             }
+            for (String table : tables) {
+                db.execSQL("DROP TABLE IF EXISTS " + table);
+            }
 
             // then drop the table tracking itemsets itself
             db.execSQL("DROP TABLE IF EXISTS " + ITEMSET_TABLE);
@@ -93,14 +127,19 @@ public class ItemsetDbAdapter {
         mDbHelper.close();
     }
 
-    public boolean createTable(String formHash, String pathHash, String[] columns, String path) {
+    /**
+     * Create the table holding the rows of an itemsets.csv. A table left over
+     * by an import that did not complete is replaced.
+     *
+     * @param tableHash md5 of the contents of the itemsets.csv
+     * @param columns the column headers of the csv
+     */
+    public boolean createTable(String tableHash, String[] columns) {
         StringBuilder sb = new StringBuilder();
-        
-        // get md5 of the path to itemset.csv, which is unique per form
-        // the md5 is easier to use because it doesn't have chars like '/'
-                
-        sb.append("create table " + DATABASE_TABLE + pathHash
-                + " (_id integer primary key autoincrement ");
+
+        sb.append("create table " + DATABASE_TABLE + tableHash
+                + " (_id integer primary key autoincrement, " + KEY_ORDER
+                + " integer not null default 0 ");
         for (int j = 0; j < columns.length; j++) {
             // add double quotes in case the column is of label:lang
             sb.append(" , \"" + columns[j] + "\" text ");
@@ -110,14 +149,87 @@ public class ItemsetDbAdapter {
 
         String tableCreate = sb.toString();
         Log.i(TAG, "create string: " + tableCreate);
+        mDb.execSQL("DROP TABLE IF EXISTS " + DATABASE_TABLE + tableHash);
         mDb.execSQL(tableCreate);
 
+        return true;
+    }
+
+    /**
+     * Drop the table of an import that did not complete. It must not have a
+     * reference yet.
+     */
+    public void dropTable(String tableHash) {
+        mDb.execSQL("DROP TABLE IF EXISTS " + DATABASE_TABLE + tableHash);
+    }
+
+    /**
+     * Record that the itemsets.csv at this path uses the table with this
+     * hash. Only tables that have a reference are considered complete.
+     */
+    public void addReference(String tableHash, String path) {
         ContentValues cv = new ContentValues();
-        cv.put(KEY_ITEMSET_HASH, formHash);
+        cv.put(KEY_ITEMSET_HASH, tableHash);
         cv.put(KEY_PATH, path);
-        mDb.insert(ITEMSET_TABLE, null, cv);
 
-        return true;
+        String where = KEY_PATH + "=?";
+        String[] whereArgs = {
+            path
+        };
+        if (mDb.update(ITEMSET_TABLE, cv, where, whereArgs) == 0) {
+            mDb.insert(ITEMSET_TABLE, null, cv);
+        }
+    }
+
+    /**
+     * @return the hash of the table used by the itemsets.csv at this path, or
+     *         null if it has not been imported
+     */
+    public String getTableHash(String path) {
+        String hash = null;
+        Cursor c = getItemsets(path);
+        if (c != null) {
+            if (c.moveToFirst()) {
+                hash = c.getString(c.getColumnIndex(KEY_ITEMSET_HASH));
+            }
+            c.close();
+        }
+        return hash;
+    }
+
+    /**
+     * @return true if an itemsets.csv uses the table with this hash
+     */
+    public boolean isReferenced(String tableHash) {
+        return getReferenceCount(tableHash) > 0;
+    }
+
+    /**
+     * @return how many itemsets.csv paths use the table with this hash
+     */
+    public long getReferenceCount(String tableHash) {
+        return DatabaseUtils.longForQuery(mDb, "select count(*) from " + ITEMSET_TABLE
+                + " where " + KEY_ITEMSET_HASH + "=?", new String[] {
+            tableHash
+        });
+    }
+
+    /**
+     * Remove the reference of the itemsets.csv at this path, and drop its
+     * table if no other itemsets.csv uses it.
+     */
+    public void release(String path) {
+        String tableHash = getTableHash(path);
+
+        String where = KEY_PATH + "=?";
+        String[] whereArgs = {
+            path
+        };
+        mDb.delete(ITEMSET_TABLE, where, whereArgs);
+
+        if (tableHash != null && !isReferenced(tableHash)) {
+            mDb.execSQL("DROP TABLE IF EXISTS " + DATABASE_TABLE + tableHash);
+        }
     }
 
     public boolean addRow(String tableName, String[] columns, String[] newRow) {
@@ -132,6 +244,614 @@ public class ItemsetDbAdapter {
         return true;
     }
 
+    /**
+     * Notified after every batch committed by a {@link BulkLoader}.
+     */
+    public interface BulkLoadListener {
+        void onRowsLoaded(int rows, long rowsPerSecond);
+    }
+
+    /**
+     * Start a bulk load of rows into a table created by createTable. No other
+     * statement may be run on this adapter until the loader is finished.
+     *
+     * @param tableHash the table to load
+     * @param columns the columns of the table, in the order the rows are given
+     * @param listener notified of the progress, may be null
+     */
+    public BulkLoader beginBulkLoad(String tableHash, String[] columns, BulkLoadListener listener) {
+        return new BulkLoader(tableHash, columns, listener);
+    }
+
+    /**
+     * Inserts rows through one compiled statement, committing every
+     * {@link #BULK_LOAD_BATCH_SIZE} rows. Syncing is turned off while the load
+     * runs, but the rollback journal stays on disk: this database holds the
+     * tables of every form, and an interrupted batch must still roll back
+     * cleanly. A table left incomplete is dropped and imported again.
+     */
+    public class BulkLoader {
+        private final SQLiteStatement mInsert;
+        private final int mColumnCount;
+        private final BulkLoadListener mListener;
+        private final long mSynchronous;
+        private final long mStart;
+        private int mRows = 0;
+        private int mRowsInBatch = 0;
+
+        private BulkLoader(String tableHash, String[] columns, BulkLoadListener listener) {
+            mColumnCount = columns.length;
+            mListener = listener;
+
+            StringBuilder sql = new StringBuilder();
+            StringBuilder params = new StringBuilder();
+            sql.append("insert into " + DATABASE_TABLE + tableHash + " (");
+            for (int i = 0; i < columns.length; i++) {
+                if (i != 0) {
+                    sql.append(", ");
+                    params.append(", ");
+                }
+                // add double quotes in case the column is of label:lang
+                sql.append("\"" + columns[i] + "\"");
+                params.append("?");
+            }
+            sql.append(", " + KEY_ORDER + ") values (" + params + ", ?)");
+
+            mSynchronous = DatabaseUtils.longForQuery(mDb, "PRAGMA synchronous", null);
+            mDb.execSQL("PRAGMA synchronous=OFF");
+
+            SQLiteStatement insert = null;
+            boolean started = false;
+            try {
+                insert = mDb.compileStatement(sql.toString());
+                mDb.beginTransaction();
+                started = true;
+            } finally {
+                if (!started) {
+                    if (insert != null) {
+                        insert.close();
+                    }
+                    mDb.execSQL("PRAGMA synchronous=" + mSynchronous);
+                }
+            }
+            mInsert = insert;
+            mStart = System.currentTimeMillis();
+        }
+
+        /**
+         * @return true if the row completed a batch, which is then committed
+         */
+        public boolean addRow(String[] row) {
+            // rows don't necessarily use all the columns
+            mInsert.clearBindings();
+            int count = Math.min(row.length, mColumnCount);
+            for (int i = 0; i < count; i++) {
+                if (row[i] == null) {
+                    mInsert.bindNull(i + 1);
+                } else {
+                    mInsert.bindString(i + 1, row[i]);
+                }
+            }
+            mInsert.bindLong(mColumnCount + 1, (mRows + 1) * ORDER_GAP);
+            mInsert.executeInsert();
+            mRows++;
+
+            if (++mRowsInBatch == BULK_LOAD_BATCH_SIZE) {
+                mDb.setTransactionSuccessful();
+                mDb.endTransaction();
+                mRowsInBatch = 0;
+                if (mListener != null) {
+                    mListener.onRowsLoaded(mRows, getRowsPerSecond());
+                }
+                mDb.beginTransaction();
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Commit the remaining rows and restore syncing.
+         *
+         * @return the number of rows loaded
+         */
+        public int finish() {
+            try {
+                mDb.setTransactionSuccessful();
+                mDb.endTransaction();
+            } finally {
+                release();
+            }
+            Log.i(TAG, "Loaded " + mRows + " rows in " + (System.currentTimeMillis() - mStart)
+                    + "ms (" + getRowsPerSecond() + " rows/s)");
+            if (mListener != null) {
+                mListener.onRowsLoaded(mRows, getRowsPerSecond());
+            }
+            return mRows;
+        }
+
+        /**
+         * Roll back the rows of the current batch and restore syncing.
+         */
+        public void abort() {
+            try {
+                mDb.endTransaction();
+            } finally {
+                release();
+            }
+        }
+
+        private void release() {
+            mInsert.close();
+            mDb.execSQL("PRAGMA synchronous=" + mSynchronous);
+        }
+
+        private long getRowsPerSecond() {
+            long elapsed = Math.max(1, System.currentTimeMillis() - mStart);
+            return mRows * 1000L / elapsed;
+        }
+    }
+
+    /**
+     * Start updating the table of an itemsets.csv to a new version of the csv,
+     * which must have the same columns. No other statement may be run on this
+     * adapter until the loader is finished.
+     *
+     * @param oldHash the table holding the previous version
+     * @param newHash md5 of the new version, the table is renamed to it
+     */
+    public DeltaLoader beginDeltaLoad(String oldHash, String newHash) {
+        return new DeltaLoader(oldHash, newHash);
+    }
+
+    /**
+     * Brings a table in line with a new version of its csv, touching only the
+     * rows that changed. The csv is read twice.
+     *
+     * In the first pass, given to {@link #matchRow(String[])}, each csv row
+     * is matched to a stored row with the same contents. The longest run of
+     * matched rows that is still in csv order keeps its _order; every other
+     * row is placed with an _order in the gap between its neighbours.
+     *
+     * In the second pass, given to {@link #updateRow(String[])}, matched rows
+     * that moved get a new _order, new rows overwrite stored rows that are no
+     * longer in the csv, or are inserted once there are none left, and the
+     * remaining unmatched stored rows are deleted by {@link #finish(String)}.
+     * The writes, including the rename of the table to the new hash, happen
+     * in one transaction, so their number follows the size of the change and
+     * not the size of the csv.
+     *
+     * The stored rows are kept in primitive arrays, 32 bytes per row, and the
+     * csv rows take 8 bytes each.
+     */
+    public class DeltaLoader {
+        private final String mOldHash;
+        private final String mNewHash;
+        private final int mColumnCount;
+        private final MessageDigest mDigest;
+        // the stored rows in _order: their _id, _order and hash
+        private final long[] mIds;
+        private final long[] mOrders;
+        private final long[] mHashes;
+        // the upper 32 bits of each hash followed by the position of the row,
+        // sorted, to find the rows with a given hash
+        private final long[] mKeys;
+        // the stored rows matched by a csv row or overwritten
+        private final BitSet mUsed;
+        private final long mStart;
+
+        // for every csv row, the position of the stored row it matched, or -1
+        private int[] mMatches = new int[1024];
+        private int mRowCount = 0;
+        // the csv rows that keep their stored _order
+        private BitSet mInPlace;
+
+        private SQLiteStatement mInsert;
+        private SQLiteStatement mUpdate;
+        private SQLiteStatement mUpdateOrder;
+        private int mRow = 0;
+        private long mLastOrder = 0;
+        private long mStep = 0;
+        private int mRunEnd = -1;
+        private int mReuse = 0;
+        private int mInserted = 0;
+        private int mUpdated = 0;
+        private int mMoved = 0;
+        private int mDeleted = 0;
+        private boolean mUpdating = false;
+        private boolean mEnded = false;
+
+        private DeltaLoader(String oldHash, String newHash) {
+            mOldHash = oldHash;
+            mNewHash = newHash;
+            mStart = System.currentTimeMillis();
+            try {
+                mDigest = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+
+            List<String> columns = getColumns(oldHash);
+            mColumnCount = columns.size();
+
+            StringBuilder projection = new StringBuilder(KEY_ID + ", " + KEY_ORDER);
+            for (int i = 0; i < columns.size(); i++) {
+                projection.append(", \"" + columns.get(i) + "\"");
+            }
+
+            int count = (int) DatabaseUtils.longForQuery(mDb, "select count(*) from "
+                    + DATABASE_TABLE + oldHash, null);
+            mIds = new long[count];
+            mOrders = new long[count];
+            mHashes = new long[count];
+            mKeys = new long[count];
+            mUsed = new BitSet(count);
+
+            int position = 0;
+            Cursor c = mDb.rawQuery("select " + projection + " from " + DATABASE_TABLE
+                    + oldHash + " order by " + KEY_ORDER, null);
+            try {
+                String[] row = new String[mColumnCount];
+                while (c.moveToNext() && position < count) {
+                    for (int i = 0; i < mColumnCount; i++) {
+                        row[i] = c.getString(i + 2);
+                    }
+                    mIds[position] = c.getLong(0);
+                    mOrders[position] = c.getLong(1);
+                    mHashes[position] = hashRow(row);
+                    mKeys[position] = toKey(mHashes[position], position);
+                    position++;
+                }
+            } finally {
+                c.close();
+            }
+            Arrays.sort(mKeys);
+        }
+
+        /**
+         * First pass: match the next csv row to a stored row.
+         */
+        public void matchRow(String[] row) {
+            if (mRowCount == mMatches.length) {
+                int[] matches = new int[mMatches.length * 2];
+                System.arraycopy(mMatches, 0, matches, 0, mRowCount);
+                mMatches = matches;
+            }
+            mMatches[mRowCount++] = findStoredRow(hashRow(row));
+        }
+
+        /**
+         * End the first pass and start the transaction of the second.
+         */
+        public void beginUpdate() {
+            mInPlace = findRowsInPlace();
+
+            List<String> columns = getColumns(mOldHash);
+            StringBuilder insert = new StringBuilder("insert into " + DATABASE_TABLE + mOldHash
+                    + " (");
+            StringBuilder params = new StringBuilder();
+            StringBuilder update = new StringBuilder("update " + DATABASE_TABLE + mOldHash
+                    + " set ");
+            for (int i = 0; i < columns.size(); i++) {
+                insert.append("\"" + columns.get(i) + "\", ");
+                params.append("?, ");
+                update.append("\"" + columns.get(i) + "\"=?, ");
+            }
+            insert.append(KEY_ORDER + ") values (" + params + "?)");
+            update.append(KEY_ORDER + "=? where " + KEY_ID + "=?");
+
+            mInsert = mDb.compileStatement(insert.toString());
+            mUpdate = mDb.compileStatement(update.toString());
+            mUpdateOrder = mDb.compileStatement("update " + DATABASE_TABLE + mOldHash + " set "
+                    + KEY_ORDER + "=? where " + KEY_ID + "=?");
+            mUpdating = true;
+            mDb.beginTransaction();
+        }
+
+        /**
+         * Second pass: bring the stored copy of the next csv row in place.
+         *
+         * @return false if there is no room left between the _order of the
+         *         neighbouring rows, the csv then has to be imported in full
+         */
+        public boolean updateRow(String[] row) {
+            int i = mRow++;
+            if (i >= mRowCount) {
+                // the csv changed between the two passes
+                return false;
+            }
+            int match = mMatches[i];
+            if (mInPlace.get(i)) {
+                mLastOrder = mOrders[match];
+                return true;
+            }
+
+            if (i > mRunEnd) {
+                // the rows up to the next one kept in place share its gap
+                int next = mInPlace.nextSetBit(i);
+                int end = (next == -1) ? mRowCount : next;
+                long ceiling = (next == -1) ? mLastOrder + (end - i + 1) * ORDER_GAP
+                        : mOrders[mMatches[next]];
+                mStep = (ceiling - mLastOrder) / (end - i + 1);
+                mRunEnd = end - 1;
+                if (mStep < 1) {
+                    return false;
+                }
+            }
+            long order = mLastOrder + mStep;
+            mLastOrder = order;
+
+            if (match != -1) {
+                mUpdateOrder.bindLong(1, order);
+                mUpdateOrder.bindLong(2, mIds[match]);
+                mUpdateOrder.execute();
+                mMoved++;
+                return true;
+            }
+
+            SQLiteStatement statement;
+            mReuse = mUsed.nextClearBit(mReuse);
+            if (mReuse < mIds.length) {
+                // overwrite a stored row that is no longer in the csv
+                mUsed.set(mReuse);
+                statement = mUpdate;
+                statement.clearBindings();
+                statement.bindLong(mColumnCount + 2, mIds[mReuse]);
+                mUpdated++;
+            } else {
+                statement = mInsert;
+                statement.clearBindings();
+                mInserted++;
+            }
+            int count = Math.min(row.length, mColumnCount);
+            for (int j = 0; j < count; j++) {
+                if (row[j] == null) {
+                    statement.bindNull(j + 1);
+                } else {
+                    statement.bindString(j + 1, row[j]);
+                }
+            }
+            statement.bindLong(mColumnCount + 1, order);
+            statement.execute();
+            return true;
+        }
+
+        /**
+         * Delete the rows that are not in the new csv, rename the table and
+         * point the itemsets.csv at this path to it, then commit.
+         */
+        public void finish(String path) {
+            mEnded = true;
+            try {
+                SQLiteStatement delete = mDb.compileStatement("delete from " + DATABASE_TABLE
+                        + mOldHash + " where " + KEY_ID + "=?");
+                try {
+                    for (int i = mUsed.nextClearBit(0); i < mIds.length; i = mUsed
+                            .nextClearBit(i + 1)) {
+                        delete.bindLong(1, mIds[i]);
+                        delete.execute();
+                        mDeleted++;
+                    }
+                } finally {
+                    delete.close();
+                }
+
+                mDb.execSQL("DROP TABLE IF EXISTS " + DATABASE_TABLE + mNewHash);
+                mDb.execSQL("ALTER TABLE " + DATABASE_TABLE + mOldHash + " RENAME TO "
+                        + DATABASE_TABLE + mNewHash);
+                addReference(mNewHash, path);
+                mDb.setTransactionSuccessful();
+            } finally {
+                mDb.endTransaction();
+                closeStatements();
+            }
+            Log.i(TAG, "Updated itemsets in " + (System.currentTimeMillis() - mStart) + "ms: "
+                    + mInserted + " rows inserted, " + mUpdated + " overwritten, " + mMoved
+                    + " moved, " + mDeleted + " deleted");
+        }
+
+        /**
+         * Roll back every change made so far, unless the loader has already
+         * been finished.
+         */
+        public void abort() {
+            if (mEnded) {
+                return;
+            }
+            mEnded = true;
+            try {
+                if (mUpdating) {
+                    mDb.endTransaction();
+                }
+            } finally {
+                closeStatements();
+            }
+        }
+
+        private void closeStatements() {
+            if (mInsert != null) {
+                mInsert.close();
+                mUpdate.close();
+                mUpdateOrder.close();
+            }
+        }
+
+        /**
+         * @return the csv rows whose stored rows form the longest sequence
+         *         that is already in csv order
+         */
+        private BitSet findRowsInPlace() {
+            // tails[k] is the csv row ending the best sequence of length k + 1
+            int[] tails = new int[mRowCount];
+            int[] previous = new int[mRowCount];
+            int length = 0;
+            for (int i = 0; i < mRowCount; i++) {
+                int match = mMatches[i];
+                if (match == -1) {
+                    continue;
+                }
+                int low = 0;
+                int high = length;
+                while (low < high) {
+                    int middle = (low + high) >>> 1;
+                    if (mMatches[tails[middle]] < match) {
+                        low = middle + 1;
+                    } else {
+                        high = middle;
+                    }
+                }
+                previous[i] = (low == 0) ? -1 : tails[low - 1];
+                tails[low] = i;
+                if (low == length) {
+                    length++;
+                }
+            }
+
+            BitSet inPlace = new BitSet(mRowCount);
+            for (int i = (length == 0) ? -1 : tails[length - 1]; i != -1; i = previous[i]) {
+                inPlace.set(i);
+            }
+            return inPlace;
+        }
+
+        /**
+         * @return the position of the first stored row with this hash that no
+         *         csv row matched yet, or -1 if there is none
+         */
+        private int findStoredRow(long hash) {
+            int i = Arrays.binarySearch(mKeys, toKey(hash, 0));
+            if (i < 0) {
+                i = -i - 1;
+            }
+            int upper = (int) (hash >> 32);
+            for (; i < mKeys.length && (int) (mKeys[i] >> 32) == upper; i++) {
+                int position = (int) mKeys[i];
+                if (mHashes[position] == hash && !mUsed.get(position)) {
+                    mUsed.set(position);
+                    return position;
+                }
+            }
+            return -1;
+        }
+
+        private long toKey(long hash, int position) {
+            return (hash & 0xffffffff00000000L) | position;
+        }
+
+        private long hashRow(String[] row) {
+            mDigest.reset();
+            for (int i = 0; i < mColumnCount; i++) {
+                String value = (i < row.length) ? row[i] : null;
+                if (value == null) {
+                    mDigest.update((byte) 1);
+                } else {
+                    mDigest.update(value.getBytes());
+                }
+                mDigest.update((byte) 0);
+            }
+            byte[] digest = mDigest.digest();
+            long hash = 0;
+            for (int i = 0; i < 8; i++) {
+                hash = (hash << 8) | (digest[i] & 0xff);
+            }
+            return hash;
+        }
+    }
+
+    /**
+     * Create an index on list_name followed by each set of columns, so the
+     * itemset queries filtering on them do not scan the whole table. Columns
+     * that are not in the table are left out of the index.
+     *
+     * @param tableHash the table to index
+     * @param columnSets the columns compared by each query
+     * @return the indexes, as "column, column, ..."
+     */
+    public List<String> createIndexes(String tableHash, List<List<String>> columnSets) {
+        Set<String> tableColumns = new HashSet<String>(getColumns(tableHash));
+        // indexes keep their name when a table is renamed, so compare columns
+        Set<String> existing = getIndexes(tableHash);
+
+        List<String> indexes = new ArrayList<String>();
+        if (!tableColumns.contains(LIST_NAME)) {
+            return indexes;
+        }
+        for (List<String> columns : columnSets) {
+            StringBuilder indexed = new StringBuilder("\"" + LIST_NAME + "\"");
+            for (String column : columns) {
+                if (tableColumns.contains(column) && !LIST_NAME.equals(column)) {
+                    indexed.append(", \"" + column + "\"");
+                }
+            }
+            String description = indexed.toString().replace("\"", "");
+            if (indexes.contains(description)) {
+                continue;
+            }
+            if (!existing.contains(description)) {
+                String indexName = DATABASE_TABLE + tableHash + "_"
+                        + getMd5FromString(description);
+                mDb.execSQL("create index if not exists " + indexName + " on " + DATABASE_TABLE
+                        + tableHash + " (" + indexed + ")");
+            }
+            indexes.add(description);
+        }
+        return indexes;
+    }
+
+    /**
+     * @return the columns of the table, in order, not including _id
+     */
+    public List<String> getColumns(String tableHash) {
+        List<String> columns = new ArrayList<String>();
+        Cursor c = mDb.rawQuery("PRAGMA table_info(" + DATABASE_TABLE + tableHash + ")", null);
+        try {
+            int nameColumn = c.getColumnIndex("name");
+            while (c.moveToNext()) {
+                String column = c.getString(nameColumn);
+                if (!KEY_ID.equals(column) && !KEY_ORDER.equals(column)) {
+                    columns.add(column);
+                }
+            }
+        } finally {
+            c.close();
+        }
+        return columns;
+    }
+
+    /**
+     * @return the indexes of the table, as "column, column, ..."
+     */
+    private Set<String> getIndexes(String tableHash) {
+        List<String> names = new ArrayList<String>();
+        Cursor c = mDb.rawQuery("PRAGMA index_list(" + DATABASE_TABLE + tableHash + ")", null);
+        try {
+            int nameColumn = c.getColumnIndex("name");
+            while (c.moveToNext()) {
+                names.add(c.getString(nameColumn));
+            }
+        } finally {
+            c.close();
+        }
+
+        Set<String> indexes = new HashSet<String>();
+        for (String name : names) {
+            StringBuilder description = new StringBuilder();
+            c = mDb.rawQuery("PRAGMA index_info(\"" + name + "\")", null);
+            try {
+                int nameColumn = c.getColumnIndex("name");
+                while (c.moveToNext()) {
+                    if (description.length() != 0) {
+                        description.append(", ");
+                    }
+                    description.append(c.getString(nameColumn));
+                }
+            } finally {
+                c.close();
+            }
+            indexes.add(description.toString());
+        }
+        return indexes;
+    }
+
     public boolean tableExists(String tableName) {
         // select name from sqlite_master where type = 'table'
         String selection = "type=? and name=?";
@@ -158,23 +878,12 @@ public class ItemsetDbAdapter {
     }
 
     public Cursor query(String hash, String selection, String[] selectionArgs) throws SQLException {
+        // rows are returned in csv order, also when the table was updated
         Cursor mCursor = mDb.query(true, DATABASE_TABLE + hash, null, selection, selectionArgs,
-                null, null, null, null);
+                null, null, KEY_ORDER, null);
         return mCursor;
     }
 
-    public void dropTable(String pathHash, String path) {
-        // drop the table
-        mDb.execSQL("DROP TABLE IF EXISTS " + DATABASE_TABLE + pathHash);
-
-        // and remove the entry from the itemsets table
-        String where = KEY_PATH + "=?";
-        String[] whereArgs = {
-            path
-        };
-        mDb.delete(ITEMSET_TABLE, where, whereArgs);
-    }
-
     public Cursor getItemsets(String path) {
         String selection = KEY_PATH + "=?";
         String[] selectionArgs = {
@@ -184,24 +893,6 @@ public class ItemsetDbAdapter {
         return c;
     }
 
-    public void delete(String path) {
-        Cursor c = getItemsets(path);
-        if (c != null) {
-            if (c.getCount() == 1) {
-                c.moveToFirst();
-                String table = getMd5FromString(c.getString(c.getColumnIndex(KEY_PATH)));
-                mDb.execSQL("DROP TABLE IF EXISTS " + DATABASE_TABLE + table);
-            }
-            c.close();
-        }
-
-        String where = KEY_PATH + "=?";
-        String[] whereArgs = {
-            path
-        };
-        mDb.delete(ITEMSET_TABLE, where, whereArgs);
-    }
-    
     public static String getMd5FromString(String toEncode) {
         MessageDigest md = null;
         try {
@@ -0,0 +1,661 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.external;
+
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.text.TextUtils;
+import android.util.Log;
+import au.com.bytecode.opencsv.CSVReader;
+import org.apache.commons.io.IOUtils;
+import org.odk.collect.android.R;
+import org.odk.collect.android.application.Collect;
+import org.odk.collect.android.exception.ExternalDataException;
+import org.odk.collect.android.utilities.ZipUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.math.BigInteger;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Loads an external data csv into a table of a database.
+ *
+ * The mapping of csv columns to table columns is worked out once from the
+ * header. Every row is then bound to a single compiled insert statement, and
+ * the inserts are committed in batches of {@link #BATCH_SIZE} rows. Progress
+ * is published at most every {@link #PROGRESS_INTERVAL} milliseconds.
+ *
+ * Columns whose header ends with {@link ExternalDataUtil#FULL_TEXT_SUFFIX} are
+ * also copied into an fts3 table, which search() uses to narrow down the rows
+ * it has to scan.
+ *
+ * A column is declared integer or real when the first {@link #TYPE_SAMPLE_SIZE}
+ * records only hold numbers in it, so lookups by number compare numbers and
+ * can use an index. Only numbers that SQLite reads back as the same text are
+ * counted, so "007" or "1.50" keep a column text. Every later value is checked
+ * as well, and the first one that does not fit turns its column into text.
+ *
+ * Every batch also records how far the csv has been read in a checkpoint table.
+ * An import that is cancelled or interrupted leaves its rows and checkpoint in
+ * the database, and importing the same, unchanged csv into it again resumes
+ * after the last committed batch. The checkpoint table is dropped once the
+ * import has completed.
+ *
+ * The caller owns the database and must not have a transaction open on it.
+ */
+public class ExternalCSVImporter {
+
+    private static final char DELIMITING_CHAR = ",".charAt(0);
+    private static final char QUOTE_CHAR = "\"".charAt(0);
+    private static final char ESCAPE_CHAR = "\0".charAt(0);
+
+    private static final int BATCH_SIZE = 10000;
+    private static final long PROGRESS_INTERVAL = 500;
+    private static final int TYPE_SAMPLE_SIZE = 1000;
+
+    private static final String TEXT_TYPE = "text collate nocase";
+    private static final String INTEGER_TYPE = "integer";
+    private static final String REAL_TYPE = "real";
+    // holds integers and reals side by side, without turning 3 into 3.0
+    private static final String NUMERIC_TYPE = "numeric";
+
+    private static final Pattern INTEGER_REGEX = Pattern.compile("0|-?[1-9][0-9]{0,17}");
+    private static final Pattern DECIMAL_REGEX = Pattern.compile("-?(0|[1-9][0-9]*)\\.([0-9]*[1-9])");
+    private static final Pattern WHOLE_DECIMAL_REGEX = Pattern.compile("0\\.0|-?[1-9][0-9]{0,14}\\.0");
+    // SQLite reads reals back with 15 significant digits
+    private static final int MAX_DECIMAL_DIGITS = 15;
+
+    private static final int SEEN_INTEGER = 1;
+    private static final int SEEN_DECIMAL = 2;
+    private static final int SEEN_WHOLE_DECIMAL = 4;
+    private static final int SEEN_TEXT = 8;
+
+    private static final String CHECKPOINT_TABLE_NAME = "import_checkpoint";
+    private static final String SOURCE_PATH = "source_path";
+    private static final String SOURCE_SIZE = "source_size";
+    private static final String SOURCE_MODIFIED = "source_modified";
+    private static final String RECORDS_READ = "records_read";
+    private static final String ROWS_IMPORTED = "rows_imported";
+
+    private final File dataSetFile;
+    private final String dataSetName;
+    private final String sourceName;
+    private final ExternalDataImportMonitor importMonitor;
+    private String sourceHash;
+
+    /**
+     * @param dataSetFile the csv file, or a zip file with the csv in its top folder
+     * @param dataSetName the name of the dataset, which the csv file is named after
+     */
+    public ExternalCSVImporter(File dataSetFile, String dataSetName, ExternalDataImportMonitor importMonitor) {
+        this.dataSetFile = dataSetFile;
+        this.dataSetName = dataSetName;
+        this.sourceName = isZipFile(dataSetFile) ? dataSetFile.getName() + "/" + dataSetName + ".csv" : dataSetFile.getName();
+        this.importMonitor = importMonitor;
+    }
+
+    /**
+     * @return the md5 hash of the csv, or null if the last import did not complete
+     */
+    public String getSourceHash() {
+        return sourceHash;
+    }
+
+    /**
+     * @return the number of rows imported
+     */
+    public int importInto(SQLiteDatabase db, String tableName) throws IOException {
+        Log.w(ExternalDataUtil.LOGGER_NAME, "Reading data from '" + sourceName);
+
+        // {csv records read, rows imported} of an interrupted import of this csv
+        int[] checkpoint = readCheckpoint(db, dataSetFile);
+
+        onProgress(Collect.getInstance().getString(R.string.ext_import_progress_message, sourceName, ""));
+
+        sourceHash = null;
+        MessageDigest digest = createDigest();
+
+        CSVReader reader = null;
+        try {
+            // the csv is hashed as it is read, for the manifest
+            reader = new CSVReader(new InputStreamReader(new DigestInputStream(openDataSet(dataSetFile, dataSetName), digest), "UTF-8"),
+                    DELIMITING_CHAR, QUOTE_CHAR, ESCAPE_CHAR);
+            String[] headerRow = reader.readNext();
+
+            if (!ExternalDataUtil.containsAnyData(headerRow)) {
+                throw new ExternalDataException(Collect.getInstance().getString(R.string.ext_file_no_data_error));
+            }
+
+            List<String> conflictingColumns = ExternalDataUtil.findMatchingColumnsAfterSafeningNames(headerRow);
+
+            if (conflictingColumns != null && conflictingColumns.size() > 0) {
+                // this means that after removing invalid characters, some column names resulted with the same name,
+                // so the create table query will fail with "duplicate column" error.
+                throw new ExternalDataException(Collect.getInstance().getString(R.string.ext_conflicting_columns_error, conflictingColumns));
+            }
+
+            // the types are only needed to create the table, a resumed import already has it
+            String[] inferredTypes = checkpoint == null ? inferColumnTypes(headerRow.length) : new String[headerRow.length];
+
+            // the statement parameter each csv column is bound to, 0 for columns without a header
+            int[] parameters = new int[headerRow.length];
+            List<String> tableColumns = new ArrayList<String>();
+            List<String> columnTypes = new ArrayList<String>();
+            List<String> fullTextColumns = new ArrayList<String>();
+            int sortColumn = -1;
+            for (int i = 0; i < headerRow.length; i++) {
+                String columnName = headerRow[i].trim();
+                if (columnName.length() == 0) {
+                    continue;
+                }
+                String safeColumnName = ExternalDataUtil.toSafeColumnName(columnName);
+                tableColumns.add(safeColumnName);
+                parameters[i] = tableColumns.size();
+                if (safeColumnName.equals(ExternalDataUtil.SORT_COLUMN_NAME)) {
+                    sortColumn = i;
+                    columnTypes.add(REAL_TYPE);
+                } else if (columnName.endsWith(ExternalDataUtil.FULL_TEXT_SUFFIX)) {
+                    fullTextColumns.add(safeColumnName);
+                    columnTypes.add(TEXT_TYPE);
+                } else {
+                    columnTypes.add(inferredTypes[i] == null ? TEXT_TYPE : inferredTypes[i]);
+                }
+            }
+            // without a sort column in the csv, rows sort in the order they were read
+            int rowNumberParameter = 0;
+            if (sortColumn == -1) {
+                tableColumns.add(ExternalDataUtil.SORT_COLUMN_NAME);
+                columnTypes.add(REAL_TYPE);
+                rowNumberParameter = tableColumns.size();
+            }
+
+            StringBuilder create = new StringBuilder();
+            StringBuilder insert = new StringBuilder();
+            StringBuilder values = new StringBuilder();
+            create.append("CREATE TABLE ").append(tableName).append(" ( ");
+            insert.append("INSERT INTO ").append(tableName).append(" (");
+            for (int i = 0; i < tableColumns.size(); i++) {
+                String safeColumnName = tableColumns.get(i);
+                if (i != 0) {
+                    create.append(", ");
+                    insert.append(", ");
+                    values.append(", ");
+                }
+                create.append(safeColumnName).append(" ").append(columnTypes.get(i)).append(" ");
+                insert.append(safeColumnName);
+                values.append("?");
+            }
+            create.append(" );");
+            insert.append(") VALUES (").append(values).append(")");
+
+            if (checkpoint == null) {
+                String sql = create.toString();
+                Log.w(ExternalDataUtil.LOGGER_NAME, "Creating database for " + sourceName + " with query: " + sql);
+                db.execSQL(sql);
+                createCheckpoint(db);
+                checkpoint = new int[]{0, 0};
+            } else {
+                Log.w(ExternalDataUtil.LOGGER_NAME, "Resuming the import of " + sourceName + " after " + checkpoint[1] + " rows");
+                for (int i = 0; i < checkpoint[0] && reader.readNext() != null; i++) {
+                    // skip the records that were imported before
+                }
+            }
+
+            // create the indexes.
+            // save the sql for later because inserts will be much faster if we don't have indexes already.
+            List<String> createIndexesCommands = new ArrayList<String>();
+            for (String header : headerRow) {
+                if (header.endsWith("_key")) {
+                    String indexSQL = "CREATE INDEX " + header + "_idx ON " + tableName + " (" + ExternalDataUtil.toSafeColumnName(header) + ");";
+                    createIndexesCommands.add(indexSQL);
+                    Log.w(ExternalDataUtil.LOGGER_NAME, "Will create an index on " + header + " later.");
+                }
+            }
+
+            // the types the table has, which a resumed import did not infer itself
+            Map<String, String> tableTypes = readColumnTypes(db, tableName);
+            String[] checkedTypes = new String[headerRow.length];
+            for (int i = 0; i < headerRow.length; i++) {
+                if (parameters[i] != 0 && i != sortColumn) {
+                    String type = tableTypes.get(tableColumns.get(parameters[i] - 1));
+                    if (INTEGER_TYPE.equals(type) || REAL_TYPE.equals(type) || NUMERIC_TYPE.equals(type)) {
+                        checkedTypes[i] = type;
+                    }
+                }
+            }
+
+            int rowCount = populate(db, tableName, reader, insert.toString(), parameters, checkedTypes, tableColumns,
+                    sortColumn, rowNumberParameter, checkpoint[0], checkpoint[1]);
+
+            if (importMonitor.isCancelled()) {
+                Log.w(ExternalDataUtil.LOGGER_NAME, "User canceled reading data from " + sourceName);
+                onProgress(Collect.getInstance().getString(R.string.ext_import_cancelled_message));
+            } else {
+
+                onProgress(Collect.getInstance().getString(R.string.ext_import_finalizing_message));
+
+                // now create the indexes
+                for (String createIndexCommand : createIndexesCommands) {
+                    Log.w(ExternalDataUtil.LOGGER_NAME, createIndexCommand);
+                    db.execSQL(createIndexCommand);
+                }
+
+                if (fullTextColumns.size() > 0) {
+                    createFullTextTable(db, tableName, fullTextColumns);
+                }
+
+                db.execSQL("DROP TABLE " + CHECKPOINT_TABLE_NAME);
+
+                // the whole csv has been read
+                sourceHash = toHex(digest);
+
+                Log.w(ExternalDataUtil.LOGGER_NAME, "Read all data from " + sourceName);
+                onProgress(Collect.getInstance().getString(R.string.ext_import_completed_message));
+            }
+            return rowCount;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    Log.e(ExternalDataUtil.LOGGER_NAME, e.getMessage(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Picks the type of each column from the first {@link #TYPE_SAMPLE_SIZE} records.
+     * The values are still bound as text, the type affinity of the column turns the
+     * numbers into numbers. {@link #populate} checks the values after the sample.
+     *
+     * @return the declared type of each csv column, null for text
+     */
+    private String[] inferColumnTypes(int columnCount) throws IOException {
+        int[] seen = new int[columnCount];
+        CSVReader reader = null;
+        try {
+            reader = new CSVReader(new InputStreamReader(openDataSet(dataSetFile, dataSetName), "UTF-8"),
+                    DELIMITING_CHAR, QUOTE_CHAR, ESCAPE_CHAR);
+            // skip the header
+            String[] row = reader.readNext();
+            for (int i = 0; i < TYPE_SAMPLE_SIZE && row != null; i++) {
+                row = reader.readNext();
+                for (int j = 0; row != null && j < columnCount && j < row.length; j++) {
+                    seen[j] |= getValueType(row[j]);
+                }
+            }
+        } finally {
+            IOUtils.closeQuietly(reader);
+        }
+
+        String[] types = new String[columnCount];
+        for (int i = 0; i < columnCount; i++) {
+            if (seen[i] == SEEN_INTEGER) {
+                types[i] = INTEGER_TYPE;
+            } else if ((seen[i] & (SEEN_INTEGER | SEEN_TEXT)) == 0 && seen[i] != 0) {
+                types[i] = REAL_TYPE;
+            } else if (seen[i] == (SEEN_INTEGER | SEEN_DECIMAL)) {
+                types[i] = NUMERIC_TYPE;
+            }
+        }
+        return types;
+    }
+
+    /**
+     * @return the SEEN_ flag of the value, 0 for an empty value
+     */
+    private static int getValueType(String value) {
+        if (value == null || value.length() == 0) {
+            return 0;
+        }
+        if (INTEGER_REGEX.matcher(value).matches()) {
+            return SEEN_INTEGER;
+        }
+        if (WHOLE_DECIMAL_REGEX.matcher(value).matches()) {
+            return SEEN_WHOLE_DECIMAL;
+        }
+        Matcher matcher = DECIMAL_REGEX.matcher(value);
+        if (matcher.matches()) {
+            String integerPart = matcher.group(1);
+            String fraction = matcher.group(2);
+            if (integerPart.equals("0")) {
+                // 0.0001 is still written out, 0.00001 becomes 1.0e-05
+                String significant = fraction.replaceFirst("^0+", "");
+                if (fraction.length() - significant.length() <= 3 && significant.length() <= MAX_DECIMAL_DIGITS) {
+                    return SEEN_DECIMAL;
+                }
+            } else if (integerPart.length() + fraction.length() <= MAX_DECIMAL_DIGITS) {
+                return SEEN_DECIMAL;
+            }
+        }
+        return SEEN_TEXT;
+    }
+
+    /**
+     * @param checkedTypes the numeric type of each csv column whose values are checked, null
+     *                     for the other columns
+     */
+    private int populate(SQLiteDatabase db, String tableName, CSVReader reader, String insertSQL, int[] parameters,
+                         String[] checkedTypes, List<String> tableColumns, int sortColumn, int rowNumberParameter,
+                         int recordCount, int rowCount) throws IOException {
+        long start = System.currentTimeMillis();
+        long lastProgress = start;
+        int resumedRowCount = rowCount;
+
+        SQLiteStatement insert = db.compileStatement(insertSQL);
+        SQLiteStatement updateCheckpoint = db.compileStatement("UPDATE " + CHECKPOINT_TABLE_NAME + " SET "
+                + RECORDS_READ + "=?, " + ROWS_IMPORTED + "=?");
+        db.beginTransaction();
+        try {
+            String[] row = reader.readNext();
+            while (row != null && !importMonitor.isCancelled()) {
+                recordCount++;
+                // SCTO-894 - first we should make sure that this is not an empty line
+                if (!ExternalDataUtil.containsAnyData(row)) {
+                    // yes, that is an empty row, ignore it
+                    row = reader.readNext();
+                    continue;
+                }
+
+                // the columns are retyped before anything of the row is bound, the statement
+                // cannot outlive the table it inserts into
+                for (int i = 0; i < parameters.length; i++) {
+                    if (checkedTypes[i] == null) {
+                        continue;
+                    }
+                    String columnValue = (i < row.length && row[i] != null) ? row[i] : "";
+                    if (!fits(checkedTypes[i], getValueType(columnValue))) {
+                        insert.close();
+                        insert = null;
+                        retypeAsText(db, tableName, tableColumns.get(parameters[i] - 1), columnValue);
+                        insert = db.compileStatement(insertSQL);
+                        checkedTypes[i] = null;
+                    }
+                }
+
+                for (int i = 0; i < parameters.length; i++) {
+                    if (parameters[i] == 0) {
+                        continue;
+                    }
+                    // SCTO-894 - a row with less values than the header is filled up with empty strings
+                    String columnValue = (i < row.length && row[i] != null) ? row[i] : "";
+                    if (i == sortColumn) {
+                        try {
+                            insert.bindDouble(parameters[i], Double.parseDouble(columnValue));
+                        } catch (NumberFormatException e) {
+                            throw new ExternalDataException(Collect.getInstance().getString(R.string.ext_sortBy_numeric_error, columnValue));
+                        }
+                    } else {
+                        insert.bindString(parameters[i], columnValue);
+                    }
+                }
+                if (rowNumberParameter != 0) {
+                    insert.bindLong(rowNumberParameter, rowCount + 1);
+                }
+                insert.executeInsert();
+                rowCount++;
+
+                if (rowCount % BATCH_SIZE == 0) {
+                    saveCheckpoint(updateCheckpoint, recordCount, rowCount);
+                    db.setTransactionSuccessful();
+                    db.endTransaction();
+                    db.beginTransaction();
+                }
+
+                long now = System.currentTimeMillis();
+                if (now - lastProgress >= PROGRESS_INTERVAL) {
+                    lastProgress = now;
+                    onProgress(Collect.getInstance().getString(R.string.ext_import_progress_message, sourceName,
+                            " (" + rowCount + " records so far, " + getRowsPerSecond(rowCount - resumedRowCount, start) + " records/s)"));
+                }
+                row = reader.readNext();
+            }
+            saveCheckpoint(updateCheckpoint, recordCount, rowCount);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            if (insert != null) {
+                insert.close();
+            }
+            updateCheckpoint.close();
+        }
+
+        Log.w(ExternalDataUtil.LOGGER_NAME, "Imported " + (rowCount - resumedRowCount) + " rows from " + sourceName + " in "
+                + (System.currentTimeMillis() - start) + "ms (" + getRowsPerSecond(rowCount - resumedRowCount, start) + " rows/s)");
+        return rowCount;
+    }
+
+    /**
+     * @return true if a value of the SEEN_ type can be stored in a column of the numeric type
+     * and read back as the same text
+     */
+    private static boolean fits(String columnType, int valueType) {
+        if (valueType == 0) {
+            // empty values stay empty text
+            return true;
+        }
+        if (INTEGER_TYPE.equals(columnType)) {
+            return valueType == SEEN_INTEGER;
+        }
+        if (REAL_TYPE.equals(columnType)) {
+            return valueType == SEEN_DECIMAL || valueType == SEEN_WHOLE_DECIMAL;
+        }
+        return valueType == SEEN_INTEGER || valueType == SEEN_DECIMAL;
+    }
+
+    /**
+     * Turns a numeric column into text by copying the table. Every value stored in the column
+     * so far was checked to read back as the text it was imported from, so the copy holds
+     * the csv values as they were. The rowids are kept, the full text table refers to them.
+     */
+    private void retypeAsText(SQLiteDatabase db, String tableName, String column, String value) {
+        long start = System.currentTimeMillis();
+        Map<String, String> types = readColumnTypes(db, tableName);
+        String copyName = tableName + "_copy";
+        StringBuilder create = new StringBuilder("CREATE TABLE " + copyName + " ( ");
+        StringBuilder columns = new StringBuilder();
+        StringBuilder select = new StringBuilder();
+        for (Map.Entry<String, String> entry : types.entrySet()) {
+            if (columns.length() > 0) {
+                create.append(", ");
+                columns.append(", ");
+                select.append(", ");
+            }
+            String name = entry.getKey();
+            boolean retyped = name.equals(column);
+            // the declared type does not tell the collation, every text column is nocase
+            String type = retyped || entry.getValue().equals("text") ? TEXT_TYPE : entry.getValue();
+            create.append(name).append(" ").append(type).append(" ");
+            columns.append(name);
+            select.append(retyped ? "CAST(" + name + " AS TEXT)" : name);
+        }
+        create.append(" );");
+
+        db.execSQL("DROP TABLE IF EXISTS " + copyName);
+        db.execSQL(create.toString());
+        db.execSQL("INSERT INTO " + copyName + " (rowid, " + columns + ") SELECT rowid, " + select + " FROM " + tableName);
+        db.execSQL("DROP TABLE " + tableName);
+        db.execSQL("ALTER TABLE " + copyName + " RENAME TO " + tableName);
+        Log.w(ExternalDataUtil.LOGGER_NAME, "Turned " + column + " of " + sourceName + " into text because of the value '"
+                + value + "' in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /**
+     * @return the declared type of each column of the table, in order
+     */
+    private static Map<String, String> readColumnTypes(SQLiteDatabase db, String tableName) {
+        Map<String, String> types = new LinkedHashMap<String, String>();
+        Cursor c = db.rawQuery("PRAGMA table_info(" + tableName + ")", null);
+        try {
+            int nameIndex = c.getColumnIndex("name");
+            int typeIndex = c.getColumnIndex("type");
+            while (c.moveToNext()) {
+                types.put(c.getString(nameIndex), c.getString(typeIndex).toLowerCase(Locale.ENGLISH));
+            }
+        } finally {
+            c.close();
+        }
+        return types;
+    }
+
+    private void createCheckpoint(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + CHECKPOINT_TABLE_NAME + " (" + SOURCE_PATH + " text, " + SOURCE_SIZE + " integer, "
+                + SOURCE_MODIFIED + " integer, " + RECORDS_READ + " integer, " + ROWS_IMPORTED + " integer)");
+        db.execSQL("INSERT INTO " + CHECKPOINT_TABLE_NAME + " VALUES (?, ?, ?, 0, 0)", new Object[]{
+                dataSetFile.getAbsolutePath(), dataSetFile.length(), dataSetFile.lastModified()});
+    }
+
+    private static void saveCheckpoint(SQLiteStatement updateCheckpoint, int recordCount, int rowCount) {
+        updateCheckpoint.bindLong(1, recordCount);
+        updateCheckpoint.bindLong(2, rowCount);
+        updateCheckpoint.execute();
+    }
+
+    /**
+     * @return {csv records read, rows imported} of an interrupted import of this csv, which
+     * has not changed since, or null if the database holds none
+     */
+    static int[] readCheckpoint(SQLiteDatabase db, File dataSetFile) {
+        Cursor c = null;
+        try {
+            c = db.rawQuery("SELECT " + RECORDS_READ + ", " + ROWS_IMPORTED + " FROM " + CHECKPOINT_TABLE_NAME + " WHERE "
+                    + SOURCE_PATH + "=? AND " + SOURCE_SIZE + "=? AND " + SOURCE_MODIFIED + "=?", new String[]{
+                    dataSetFile.getAbsolutePath(), String.valueOf(dataSetFile.length()), String.valueOf(dataSetFile.lastModified())});
+            if (c.moveToFirst()) {
+                return new int[]{c.getInt(0), c.getInt(1)};
+            }
+            return null;
+        } catch (SQLException e) {
+            // there is no checkpoint table
+            return null;
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+    }
+
+    /**
+     * Copies the columns into an fts3 table whose docids are the rowids of the table.
+     * If the device has no full text support the table is left out, and search() falls
+     * back to LIKE.
+     */
+    private void createFullTextTable(SQLiteDatabase db, String tableName, List<String> columns) {
+        String fullTextTableName = tableName + ExternalDataUtil.FULL_TEXT_SUFFIX;
+        String columnList = TextUtils.join(", ", columns);
+        long start = System.currentTimeMillis();
+        db.beginTransaction();
+        try {
+            db.execSQL("CREATE VIRTUAL TABLE " + fullTextTableName + " USING fts3(" + columnList + ")");
+            db.execSQL("INSERT INTO " + fullTextTableName + " (docid, " + columnList + ") SELECT rowid, "
+                    + columnList + " FROM " + tableName);
+            db.setTransactionSuccessful();
+            Log.w(ExternalDataUtil.LOGGER_NAME, "Created the full text table of " + sourceName + " on "
+                    + columnList + " in " + (System.currentTimeMillis() - start) + "ms");
+        } catch (SQLException e) {
+            Log.w(ExternalDataUtil.LOGGER_NAME, "Cannot create the full text table of " + sourceName
+                    + ", search() will use LIKE.", e);
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * A csv in a zip file is read straight out of it, so it never takes up space
+     * on the storage, and the zip file stays in place to detect changes with.
+     *
+     * @return the csv of the dataset: the file itself, or the file named after the
+     * dataset in the zip file
+     */
+    static InputStream openDataSet(File dataSetFile, String dataSetName) throws IOException {
+        if (!isZipFile(dataSetFile)) {
+            return new FileInputStream(dataSetFile);
+        }
+        for (String fileName : ZipUtils.getFileNames(dataSetFile)) {
+            if (dataSetName.equals(ExternalDataUtil.getDataSetName(fileName))) {
+                return ZipUtils.openFile(dataSetFile, fileName);
+            }
+        }
+        throw new FileNotFoundException(dataSetName + ".csv is not in " + dataSetFile.getName());
+    }
+
+    /**
+     * @return the md5 hash of the csv of the dataset, as {@link #getSourceHash()} gives it
+     */
+    static String getMd5Hash(File dataSetFile, String dataSetName) throws IOException {
+        MessageDigest digest = createDigest();
+        InputStream is = null;
+        try {
+            is = new DigestInputStream(openDataSet(dataSetFile, dataSetName), digest);
+            byte[] buffer = new byte[8192];
+            while (is.read(buffer) != -1) {
+                // the stream updates the digest
+            }
+        } finally {
+            IOUtils.closeQuietly(is);
+        }
+        return toHex(digest);
+    }
+
+    private static boolean isZipFile(File file) {
+        return file.getName().toLowerCase(Locale.ENGLISH).endsWith(".zip");
+    }
+
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new ExternalDataException(e.getMessage(), e);
+        }
+    }
+
+    private static String toHex(MessageDigest digest) {
+        String md5 = new BigInteger(1, digest.digest()).toString(16);
+        while (md5.length() < 32) {
+            md5 = "0" + md5;
+        }
+        return md5;
+    }
+
+    private static long getRowsPerSecond(int rowCount, long start) {
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+        return rowCount * 1000L / elapsed;
+    }
+
+    private void onProgress(String message) {
+        if (importMonitor != null) {
+            importMonitor.publishExternalDataLoadingProgress(message);
+        }
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.external;
+
+/**
+ * Receives the progress of an external data import and tells it when to stop.
+ * Implemented by the form loader and by the background form precompiler.
+ */
+public interface ExternalDataImportMonitor {
+
+    void publishExternalDataLoadingProgress(String message);
+
+    boolean isCancelled();
+
+    /**
+     * Receives the time taken by a step of the import, such as the import of
+     * one dataset, for the form load metrics.
+     */
+    void recordImportTiming(String step, long millis);
+}
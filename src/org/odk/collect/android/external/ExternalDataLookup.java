@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.external;
+
+import android.util.Log;
+import org.apache.commons.io.IOUtils;
+import org.javarosa.xpath.XPathParseTool;
+import org.javarosa.xpath.expr.XPathExpression;
+import org.javarosa.xpath.expr.XPathFuncExpr;
+import org.javarosa.xpath.expr.XPathStringLiteral;
+import org.javarosa.xpath.parser.XPathSyntaxException;
+import org.kxml2.io.KXmlParser;
+import org.odk.collect.android.external.handler.ExternalDataHandlerPull;
+import org.odk.collect.android.external.handler.ExternalDataHandlerSearch;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A column of an external dataset that a form looks rows up by: the reference
+ * column of a pulldata() call, or the filter column of a search() appearance.
+ *
+ * They are found by scanning the attributes of the form xml, which works
+ * before, and without, the form definition being loaded. Only calls whose
+ * dataset and column are string literals are found.
+ */
+public class ExternalDataLookup {
+
+    private static final Pattern FUNCTION_REGEX = Pattern.compile("\\b(" + ExternalDataHandlerPull.HANDLER_NAME + "|"
+            + ExternalDataHandlerSearch.HANDLER_NAME + ")\\s*\\(");
+
+    private final String dataSetName;
+    private final String columnName;
+
+    private ExternalDataLookup(String dataSetName, String columnName) {
+        this.dataSetName = dataSetName;
+        this.columnName = columnName;
+    }
+
+    /**
+     * @return the normalized name of the dataset, as the function handlers use it
+     */
+    public String getDataSetName() {
+        return dataSetName;
+    }
+
+    /**
+     * @return the safe name of the column
+     */
+    public String getColumnName() {
+        return columnName;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof ExternalDataLookup)) {
+            return false;
+        }
+        ExternalDataLookup other = (ExternalDataLookup) o;
+        return dataSetName.equals(other.dataSetName) && columnName.equals(other.columnName);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * dataSetName.hashCode() + columnName.hashCode();
+    }
+
+    /**
+     * @return "dataset.column", which {@link #fromString(String)} reads back
+     */
+    @Override
+    public String toString() {
+        return dataSetName + "." + columnName;
+    }
+
+    /**
+     * @param lookup a lookup as {@link #toString()} wrote it
+     */
+    public static ExternalDataLookup fromString(String lookup) {
+        // safe column names have no dots, dataset names may
+        int separator = lookup.lastIndexOf('.');
+        return new ExternalDataLookup(lookup.substring(0, separator), lookup.substring(separator + 1));
+    }
+
+    /**
+     * @return the lookups of the form, each once, or null if the form cannot be read
+     */
+    public static List<ExternalDataLookup> findAll(File formXml) {
+        Set<ExternalDataLookup> lookups = new LinkedHashSet<ExternalDataLookup>();
+        InputStream is = null;
+        try {
+            is = new BufferedInputStream(new FileInputStream(formXml));
+            KXmlParser parser = new KXmlParser();
+            parser.setInput(is, null);
+            for (int eventType = parser.getEventType(); eventType != XmlPullParser.END_DOCUMENT; eventType = parser.next()) {
+                if (eventType == XmlPullParser.START_TAG) {
+                    for (int i = 0; i < parser.getAttributeCount(); i++) {
+                        collect(parser.getAttributeValue(i), lookups);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Log.w(ExternalDataUtil.LOGGER_NAME, "Cannot read the external data lookups of " + formXml.getName(), e);
+            return null;
+        } catch (XmlPullParserException e) {
+            Log.w(ExternalDataUtil.LOGGER_NAME, "Cannot read the external data lookups of " + formXml.getName(), e);
+            return null;
+        } finally {
+            IOUtils.closeQuietly(is);
+        }
+        return new ArrayList<ExternalDataLookup>(lookups);
+    }
+
+    private static void collect(String expression, Set<ExternalDataLookup> lookups) {
+        Matcher matcher = FUNCTION_REGEX.matcher(expression);
+        // calls nested in the arguments of a call are found too, since the search
+        // continues right after the name of each call
+        while (matcher.find()) {
+            int end = findClosingParenthesis(expression, matcher.end());
+            if (end == -1) {
+                return;
+            }
+            try {
+                XPathExpression xPathExpression = XPathParseTool.parseXPath(expression.substring(matcher.start(), end + 1));
+                if (xPathExpression instanceof XPathFuncExpr) {
+                    add((XPathFuncExpr) xPathExpression, lookups);
+                }
+            } catch (XPathSyntaxException e) {
+                // the function handlers report malformed calls when they are evaluated
+            }
+        }
+    }
+
+    private static void add(XPathFuncExpr function, Set<ExternalDataLookup> lookups) {
+        XPathExpression[] args = function.args;
+        if (function.id.name.equals(ExternalDataHandlerPull.HANDLER_NAME) && args.length == 4) {
+            add(args[0], args[2], lookups);
+        } else if (function.id.name.equals(ExternalDataHandlerSearch.HANDLER_NAME) && args.length == 6) {
+            // the queried columns are searched with LIKE, which cannot use an index
+            add(args[0], args[4], lookups);
+        }
+    }
+
+    private static void add(XPathExpression dataSetArg, XPathExpression columnArg, Set<ExternalDataLookup> lookups) {
+        if (!(dataSetArg instanceof XPathStringLiteral) || !(columnArg instanceof XPathStringLiteral)) {
+            return;
+        }
+        // SCTO-545
+        String dataSetName = ((XPathStringLiteral) dataSetArg).s.toLowerCase();
+        if (dataSetName.endsWith(".csv")) {
+            dataSetName = dataSetName.substring(0, dataSetName.lastIndexOf(".csv"));
+        }
+        String columnName = ((XPathStringLiteral) columnArg).s;
+        if (columnName.trim().length() > 0) {
+            lookups.add(new ExternalDataLookup(dataSetName, ExternalDataUtil.toSafeColumnName(columnName)));
+        }
+    }
+
+    /**
+     * @return the index of the parenthesis that closes the one before start, or -1
+     */
+    private static int findClosingParenthesis(String expression, int start) {
+        int depth = 1;
+        char quote = 0;
+        for (int i = start; i < expression.length(); i++) {
+            char c = expression.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '\'' || c == '"') {
+                quote = c;
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')' && --depth == 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -75,6 +75,7 @@ public class ExternalDataManagerImpl implements ExternalDataManager {
 
     @Override
     public void close() {
+        Log.i(ExternalDataUtil.LOGGER_NAME, "pulldata() row cache: " + ExternalDataRowCache.getStats());
         if (dbMap != null) {
             for (ExternalSQLiteOpenHelper externalSQLiteOpenHelper : dbMap.values()) {
                 Log.w(ExternalDataUtil.LOGGER_NAME, "Closing database handler:" + externalSQLiteOpenHelper.toString());
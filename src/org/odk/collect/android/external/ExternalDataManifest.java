@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.external;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import java.io.File;
+
+/**
+ * What a dataset database was imported from: the name, size and modification
+ * time of the source file (the csv, or the zip file it is in), the md5 hash of
+ * the csv, and the number of rows and the schema of the table built from it.
+ *
+ * The manifest is stored in the dataset database when its import completes. A
+ * source file whose size and modification time still match is taken to be
+ * unchanged without reading it, and one that was written again is only
+ * imported again if its hash differs.
+ */
+public final class ExternalDataManifest {
+
+    private static final String TABLE_NAME = "manifest";
+    private static final String SOURCE_NAME = "source_name";
+    private static final String SOURCE_HASH = "source_hash";
+    private static final String SOURCE_SIZE = "source_size";
+    private static final String SOURCE_MODIFIED = "source_modified";
+    private static final String ROW_COUNT = "row_count";
+    private static final String SCHEMA = "schema";
+
+    private final String sourceName;
+    private final String sourceHash;
+    private final long sourceSize;
+    private final long sourceModified;
+    private final int rowCount;
+    private final String schema;
+
+    private ExternalDataManifest(String sourceName, String sourceHash, long sourceSize, long sourceModified, int rowCount, String schema) {
+        this.sourceName = sourceName;
+        this.sourceHash = sourceHash;
+        this.sourceSize = sourceSize;
+        this.sourceModified = sourceModified;
+        this.rowCount = rowCount;
+        this.schema = schema;
+    }
+
+    public String getSourceName() {
+        return sourceName;
+    }
+
+    public String getSourceHash() {
+        return sourceHash;
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * @return the create table statement of the dataset table
+     */
+    public String getSchema() {
+        return schema;
+    }
+
+    /**
+     * @return true if the file has the size and modification time the manifest recorded
+     */
+    public boolean isUnchanged(File sourceFile) {
+        return sourceFile.length() == sourceSize && sourceFile.lastModified() == sourceModified;
+    }
+
+    /**
+     * @return the manifest of a completely imported dataset database, or null if the
+     * database does not exist, is incomplete or was imported without a manifest
+     */
+    public static ExternalDataManifest read(File dbFile) {
+        if (!dbFile.exists()) {
+            return null;
+        }
+        SQLiteDatabase db = null;
+        Cursor c = null;
+        try {
+            db = SQLiteDatabase.openDatabase(dbFile.getAbsolutePath(), null, SQLiteDatabase.OPEN_READONLY);
+            if (db.getVersion() == 0) {
+                return null;
+            }
+            c = db.query(TABLE_NAME, new String[]{SOURCE_NAME, SOURCE_HASH, SOURCE_SIZE, SOURCE_MODIFIED, ROW_COUNT, SCHEMA},
+                    null, null, null, null, null);
+            if (!c.moveToFirst()) {
+                return null;
+            }
+            return new ExternalDataManifest(c.getString(0), c.getString(1), c.getLong(2), c.getLong(3), c.getInt(4), c.getString(5));
+        } catch (SQLException e) {
+            Log.w(ExternalDataUtil.LOGGER_NAME, "Cannot read the manifest of " + dbFile + ": " + e.getMessage());
+            return null;
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+            if (db != null) {
+                db.close();
+            }
+        }
+    }
+
+    /**
+     * Records that the table was imported from the source file.
+     */
+    static void write(SQLiteDatabase db, File sourceFile, String sourceHash, int rowCount, String tableName) {
+        String schema = DatabaseUtils.stringForQuery(db, "SELECT sql FROM sqlite_master WHERE type='table' AND name=?",
+                new String[]{tableName});
+
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_NAME);
+        db.execSQL("CREATE TABLE " + TABLE_NAME + " (" + SOURCE_NAME + " text, " + SOURCE_HASH + " text, "
+                + SOURCE_SIZE + " integer, " + SOURCE_MODIFIED + " integer, " + ROW_COUNT + " integer, " + SCHEMA + " text)");
+
+        ContentValues values = new ContentValues();
+        values.put(SOURCE_NAME, sourceFile.getName());
+        values.put(SOURCE_HASH, sourceHash);
+        values.put(SOURCE_SIZE, sourceFile.length());
+        values.put(SOURCE_MODIFIED, sourceFile.lastModified());
+        values.put(ROW_COUNT, rowCount);
+        values.put(SCHEMA, schema);
+        db.insert(TABLE_NAME, null, values);
+    }
+
+    /**
+     * Records the size and modification time of a source file that was written again
+     * with the content the database was imported from.
+     */
+    public static void touch(File dbFile, File sourceFile) {
+        SQLiteDatabase db = null;
+        try {
+            db = SQLiteDatabase.openDatabase(dbFile.getAbsolutePath(), null, SQLiteDatabase.OPEN_READWRITE);
+            ContentValues values = new ContentValues();
+            values.put(SOURCE_SIZE, sourceFile.length());
+            values.put(SOURCE_MODIFIED, sourceFile.lastModified());
+            db.update(TABLE_NAME, values, null, null);
+        } catch (SQLException e) {
+            Log.w(ExternalDataUtil.LOGGER_NAME, "Cannot update the manifest of " + dbFile + ": " + e.getMessage());
+        } finally {
+            if (db != null) {
+                db.close();
+            }
+        }
+    }
+}
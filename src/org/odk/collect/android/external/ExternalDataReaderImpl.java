@@ -18,14 +18,19 @@
 
 package org.odk.collect.android.external;
 
-import android.database.sqlite.SQLiteDatabase;
 import android.util.Log;
-import org.apache.commons.io.FileUtils;
-import org.odk.collect.android.tasks.FormLoaderTask;
+import org.odk.collect.android.exception.ExternalDataException;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Author: Meletis Margaritis
@@ -34,64 +39,185 @@ import java.util.Map;
  */
 public class ExternalDataReaderImpl implements ExternalDataReader {
 
-    private FormLoaderTask formLoaderTask;
+    // the imports are mostly bound by the storage, so more threads would only compete for it
+    private static final int MAX_PARALLEL_IMPORTS = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
 
-    public ExternalDataReaderImpl(FormLoaderTask formLoaderTask) {
-        this.formLoaderTask = formLoaderTask;
+    private ExternalDataImportMonitor importMonitor;
+
+    public ExternalDataReaderImpl(ExternalDataImportMonitor importMonitor) {
+        this.importMonitor = importMonitor;
     }
 
     @Override
     public void doImport(Map<String, File> externalDataMap) {
+        final Map<String, File> dataSetsToImport = new LinkedHashMap<String, File>();
         for (Map.Entry<String, File> stringFileEntry : externalDataMap.entrySet()) {
             String dataSetName = stringFileEntry.getKey();
             File dataSetFile = stringFileEntry.getValue();
             if (dataSetFile.exists()) {
                 File dbFile = new File(dataSetFile.getParentFile().getAbsolutePath(), dataSetName + ".db");
-                if (dbFile.exists()) {
-                    // this means the someone updated the csv file, so we need to reload it
-                    boolean deleted = dbFile.delete();
-                    if (!deleted) {
-                        Log.e(ExternalDataUtil.LOGGER_NAME, dataSetFile.getName() + " has changed but we could not delete the previous DB at " + dbFile.getAbsolutePath());
-                        continue;
-                    }
+                if (!isImported(dbFile, dataSetFile, dataSetName)) {
+                    dataSetsToImport.put(dataSetName, dataSetFile);
                 }
-                ExternalSQLiteOpenHelper externalSQLiteOpenHelper = new ExternalSQLiteOpenHelper(dbFile);
-                externalSQLiteOpenHelper.importFromCSV(dataSetFile, this, formLoaderTask);
+            }
+        }
 
-                if (formLoaderTask.isCancelled()) {
-                    Log.w(ExternalDataUtil.LOGGER_NAME, "The import was cancelled, so we need to rollback.");
+        if (dataSetsToImport.size() == 1) {
+            Map.Entry<String, File> dataSet = dataSetsToImport.entrySet().iterator().next();
+            importDataSet(dataSet.getKey(), dataSet.getValue(), importMonitor);
+        } else if (dataSetsToImport.size() > 1) {
+            importInParallel(dataSetsToImport);
+        }
+    }
 
-                    // we need to drop the database file since it might be partially populated. It will be re-created next time.
+    /**
+     * Every dataset is imported into its own database file, so they are imported at the same
+     * time, on at most {@link #MAX_PARALLEL_IMPORTS} threads. All of them stop when the import
+     * is cancelled.
+     */
+    private void importInParallel(Map<String, File> dataSetsToImport) {
+        long start = System.currentTimeMillis();
+        ProgressAggregator progressAggregator = new ProgressAggregator(importMonitor);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(dataSetsToImport.size(), MAX_PARALLEL_IMPORTS));
+        List<Future<?>> imports = new ArrayList<Future<?>>();
+        for (Map.Entry<String, File> dataSet : dataSetsToImport.entrySet()) {
+            final String dataSetName = dataSet.getKey();
+            final File dataSetFile = dataSet.getValue();
+            final ExternalDataImportMonitor dataSetMonitor = progressAggregator.createMonitor(dataSetName);
+            imports.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    importDataSet(dataSetName, dataSetFile, dataSetMonitor);
+                }
+            }));
+        }
+        executor.shutdown();
 
-                    Log.w(ExternalDataUtil.LOGGER_NAME, "Closing database to be deleted " + dbFile);
+        // wait for all of them, and report the first failure
+        RuntimeException failure = null;
+        for (Future<?> dataSetImport : imports) {
+            try {
+                dataSetImport.get();
+            } catch (ExecutionException e) {
+                Throwable cause = (e.getCause() != null) ? e.getCause() : e;
+                Log.e(ExternalDataUtil.LOGGER_NAME, cause.getMessage(), cause);
+                if (failure == null) {
+                    failure = (cause instanceof RuntimeException) ? (RuntimeException) cause : new ExternalDataException(cause.getMessage(), cause);
+                }
+            } catch (InterruptedException e) {
+                Log.e(ExternalDataUtil.LOGGER_NAME, "Interrupted while importing external data", e);
+                if (failure == null) {
+                    failure = new ExternalDataException(e.getMessage(), e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        Log.w(ExternalDataUtil.LOGGER_NAME, "Imported " + dataSetsToImport.size() + " datasets in " + (System.currentTimeMillis() - start) + "ms");
+    }
 
-                    // then close the database
-                    SQLiteDatabase db = externalSQLiteOpenHelper.getReadableDatabase();
-                    db.close();
+    private void importDataSet(String dataSetName, File dataSetFile, ExternalDataImportMonitor dataSetMonitor) {
+        File dbFile = new File(dataSetFile.getParentFile().getAbsolutePath(), dataSetName + ".db");
 
-                    // the physically delete the db.
-                    try {
-                        FileUtils.forceDelete(dbFile);
-                        Log.w(ExternalDataUtil.LOGGER_NAME, "Deleted " + dbFile.getName());
-                    } catch (IOException e) {
-                        Log.e(ExternalDataUtil.LOGGER_NAME, e.getMessage(), e);
-                    }
+        // the rows pulldata() looked up before are about to be replaced
+        ExternalDataRowCache.removeDataSet(dbFile.getAbsolutePath());
+        if (dbFile.exists() && ExternalSQLiteOpenHelper.canResumeImport(dbFile, dataSetFile)) {
+            Log.w(ExternalDataUtil.LOGGER_NAME, "Resuming the interrupted import of " + dataSetFile.getName());
+        } else if (dbFile.exists()) {
+            // this means the someone updated the csv file, so we need to reload it
+            boolean deleted = dbFile.delete();
+            // the journal of an interrupted import belongs to the old database
+            new File(dbFile.getAbsolutePath() + "-journal").delete();
+            if (!deleted) {
+                Log.e(ExternalDataUtil.LOGGER_NAME, dataSetFile.getName() + " has changed but we could not delete the previous DB at " + dbFile.getAbsolutePath());
+                return;
+            }
+        }
+        long start = System.currentTimeMillis();
+        ExternalSQLiteOpenHelper externalSQLiteOpenHelper = new ExternalSQLiteOpenHelper(dbFile);
+        externalSQLiteOpenHelper.importFromCSV(dataSetFile, this, dataSetMonitor);
+        dataSetMonitor.recordImportTiming("external_data_import_" + dataSetName, System.currentTimeMillis() - start);
+
+        if (dataSetMonitor.isCancelled()) {
+            // the rows imported so far are kept, and the import resumes from its last
+            // checkpoint the next time this csv is imported
+            Log.w(ExternalDataUtil.LOGGER_NAME, "The import of " + dataSetFile.getName() + " was cancelled. It will resume next time.");
+        }
+    }
+
+    /**
+     * @param dataSetFile the csv file of the dataset, or the zip file it is in
+     * @return true if the database was completely imported from a csv with the content the
+     * csv has now
+     */
+    public static boolean isImported(File dbFile, File dataSetFile, String dataSetName) {
+        ExternalDataManifest manifest = ExternalDataManifest.read(dbFile);
+        if (manifest == null) {
+            return false;
+        }
+        if (manifest.isUnchanged(dataSetFile)) {
+            return true;
+        }
+        // the file was written again, maybe with the same csv
+        String hash;
+        try {
+            hash = ExternalCSVImporter.getMd5Hash(dataSetFile, dataSetName);
+        } catch (IOException e) {
+            Log.e(ExternalDataUtil.LOGGER_NAME, "Cannot read " + dataSetFile.getName() + ": " + e.getMessage(), e);
+            return false;
+        }
+        if (hash.equals(manifest.getSourceHash())) {
+            Log.w(ExternalDataUtil.LOGGER_NAME, dataSetFile.getName() + " has the content it was imported from, so it is not imported again");
+            ExternalDataManifest.touch(dbFile, dataSetFile);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Shows the latest progress message of every dataset being imported, one per line.
+     */
+    private static class ProgressAggregator {
 
-                    // then just exit and do not process any other CSVs.
-                    return;
-
-                } else {
-                    // rename the dataSetFile into "dataSetFile.csv.imported" in order not to be loaded again
-                    File importedFile = new File(dataSetFile.getParentFile(), dataSetFile.getName() + ".imported");
-                    boolean renamed = dataSetFile.renameTo(importedFile);
-                    if (!renamed) {
-                        Log.e(ExternalDataUtil.LOGGER_NAME, dataSetFile.getName() + " could not be renamed to be archived. It will be re-imported again! :(");
-                    } else {
-                        Log.e(ExternalDataUtil.LOGGER_NAME, dataSetFile.getName() + " was renamed to " + importedFile.getName());
+        private final ExternalDataImportMonitor importMonitor;
+        private final Map<String, String> messages = new LinkedHashMap<String, String>();
+
+        ProgressAggregator(ExternalDataImportMonitor importMonitor) {
+            this.importMonitor = importMonitor;
+        }
+
+        ExternalDataImportMonitor createMonitor(final String dataSetName) {
+            return new ExternalDataImportMonitor() {
+                @Override
+                public void publishExternalDataLoadingProgress(String message) {
+                    publish(dataSetName, message);
+                }
+
+                @Override
+                public boolean isCancelled() {
+                    return importMonitor.isCancelled();
+                }
+
+                @Override
+                public void recordImportTiming(String step, long millis) {
+                    importMonitor.recordImportTiming(step, millis);
+                }
+            };
+        }
+
+        private void publish(String dataSetName, String message) {
+            StringBuilder sb = new StringBuilder();
+            synchronized (messages) {
+                messages.put(dataSetName, message);
+                for (String dataSetMessage : messages.values()) {
+                    if (sb.length() > 0) {
+                        sb.append("\n");
                     }
+                    sb.append(dataSetMessage);
                 }
             }
+            importMonitor.publishExternalDataLoadingProgress(sb.toString());
         }
     }
-
 }
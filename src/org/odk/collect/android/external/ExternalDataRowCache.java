@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.external;
+
+import android.content.ComponentCallbacks2;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * In-process LRU of the external data rows looked up by pulldata(), so the
+ * calls that read different columns of the same row only query the dataset
+ * once.
+ *
+ * An entry is keyed by the dataset database path, the reference column and
+ * the reference value, and holds the whole matching row as a map of safe
+ * column names to values, or an empty map if no row matched. The entries of a
+ * dataset are dropped when it is imported again.
+ */
+public final class ExternalDataRowCache {
+
+    // use at most 1/32nd of the heap for rows
+    private static final int MAX_BYTES = (int) Math.min(Integer.MAX_VALUE,
+            Runtime.getRuntime().maxMemory() / 32);
+    // approximate overhead of a String or map entry object
+    private static final int OBJECT_OVERHEAD = 16;
+
+    private static final LruCache<String, Map<String, String>> cache =
+            new LruCache<String, Map<String, String>>(MAX_BYTES) {
+        @Override
+        protected int sizeOf(String key, Map<String, String> row) {
+            int size = 2 * key.length() + OBJECT_OVERHEAD;
+            for (Map.Entry<String, String> column : row.entrySet()) {
+                size += 3 * OBJECT_OVERHEAD + 2 * column.getKey().length();
+                size += column.getValue() == null ? 0 : 2 * column.getValue().length();
+            }
+            return size;
+        }
+    };
+
+    // {hits, misses} of each dataset database path
+    private static final Map<String, int[]> stats = new HashMap<String, int[]>();
+
+    private ExternalDataRowCache() {
+    }
+
+    /**
+     * @return the key of the row of the dataset database at this path whose
+     * reference column has the reference value
+     */
+    public static String getKey(String dbPath, String safeReferenceColumn, String referenceValue) {
+        return dbPath + '\u0000' + safeReferenceColumn + '\u0000' + referenceValue;
+    }
+
+    /**
+     * @return the cached row, empty if the dataset has no matching row, or
+     * null if the row has not been looked up yet
+     */
+    public static Map<String, String> get(String dbPath, String key) {
+        Map<String, String> row = cache.get(key);
+        synchronized (stats) {
+            int[] dataSetStats = stats.get(dbPath);
+            if (dataSetStats == null) {
+                dataSetStats = new int[2];
+                stats.put(dbPath, dataSetStats);
+            }
+            dataSetStats[row == null ? 1 : 0]++;
+        }
+        return row;
+    }
+
+    public static void put(String key, Map<String, String> row) {
+        cache.put(key, row);
+    }
+
+    /**
+     * Drop the rows of the dataset database at this path, and its stats.
+     */
+    public static void removeDataSet(String dbPath) {
+        String prefix = dbPath + '\u0000';
+        for (String key : cache.snapshot().keySet()) {
+            if (key.startsWith(prefix)) {
+                cache.remove(key);
+            }
+        }
+        synchronized (stats) {
+            stats.remove(dbPath);
+        }
+    }
+
+    public static void clear() {
+        cache.evictAll();
+    }
+
+    /**
+     * Release memory according to the level passed to
+     * {@link ComponentCallbacks2#onTrimMemory(int)}.
+     */
+    public static void trimMemory(int level) {
+        if (level == ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            return;
+        }
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            clear();
+        }
+        Log.i(ExternalDataUtil.LOGGER_NAME, "Trimmed the row cache for level " + level + ": " + getStats());
+    }
+
+    /**
+     * @return the hit rate of every dataset looked up since it was last
+     * imported, and the memory held
+     */
+    public static String getStats() {
+        StringBuilder sb = new StringBuilder();
+        synchronized (stats) {
+            for (Map.Entry<String, int[]> dataSetStats : stats.entrySet()) {
+                int hits = dataSetStats.getValue()[0];
+                int misses = dataSetStats.getValue()[1];
+                sb.append(dataSetStats.getKey()).append(" hits: ").append(hits)
+                        .append(", misses: ").append(misses)
+                        .append(", hit rate: ").append(hits * 100 / Math.max(1, hits + misses)).append("%; ");
+            }
+        }
+        return sb.append("bytes held: ").append(cache.size()).append("/").append(MAX_BYTES).toString();
+    }
+}
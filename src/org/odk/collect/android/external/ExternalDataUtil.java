@@ -54,11 +54,28 @@ public final class ExternalDataUtil {
     public static final String LOGGER_NAME = "ExternalData";
     public static final String EXTERNAL_DATA_TABLE_NAME = "externalData";
     public static final String SORT_COLUMN_NAME = "c_sortby";
+    // columns whose header ends with this are also copied into the full text table
+    public static final String FULL_TEXT_SUFFIX = "_fts";
+    public static final String FULL_TEXT_TABLE_NAME = EXTERNAL_DATA_TABLE_NAME + FULL_TEXT_SUFFIX;
 
     private static final Pattern SEARCH_FUNCTION_REGEX = Pattern.compile("search\\(.+\\)");
     private static final String COLUMN_SEPARATOR = ",";
     private static final String FALLBACK_COLUMN_SEPARATOR = " ";
     public static final String JR_IMAGES_PREFIX = "jr://images/";
+    private static final String ITEMSETS_CSV = "itemsets.csv";
+
+    /**
+     * @param fileName the name of a file in the media folder, or of a file in a zip file there
+     * @return the name of the dataset the csv file holds, or null if it is not an external
+     * data csv file
+     */
+    public static String getDataSetName(String fileName) {
+        String lowerCaseName = fileName.toLowerCase(Locale.ENGLISH);
+        if (!lowerCaseName.endsWith(".csv") || lowerCaseName.equals(ITEMSETS_CSV)) {
+            return null;
+        }
+        return fileName.substring(0, fileName.lastIndexOf("."));
+    }
 
     public static String toSafeColumnName(String columnName, Map<String, String> cache) {
         String cachedName = cache.get(columnName);
@@ -129,7 +146,12 @@ public final class ExternalDataUtil {
         }
     }
 
-    public static ArrayList<SelectChoice> populateExternalChoices(FormEntryPrompt formEntryPrompt, XPathFuncExpr xPathFuncExpr) {
+    /**
+     * @return the choices of the prompt, with its search() choices replaced by the rows they select.
+     * If the search() choice is the only one, the list search() returned is returned as is, so its
+     * choices are only read as they are used.
+     */
+    public static List<SelectChoice> populateExternalChoices(FormEntryPrompt formEntryPrompt, XPathFuncExpr xPathFuncExpr) {
         try {
             List<SelectChoice> selectChoices = formEntryPrompt.getSelectChoices();
             ArrayList<SelectChoice> returnedChoices = new ArrayList<SelectChoice>();
@@ -156,9 +178,12 @@ public final class ExternalDataUtil {
                     evaluationContext.addFunctionHandler(new ExternalDataHandlerSearch(externalDataManager, displayColumns, value, imageColumn));
 
                     Object eval = xPathFuncExpr.eval(formInstance, evaluationContext);
-                    if (eval.getClass().isAssignableFrom(ArrayList.class)) {
+                    if (eval instanceof List) {
                        @SuppressWarnings("unchecked")
-                     List<SelectChoice> dynamicChoices = (ArrayList<SelectChoice>) eval;
+                     List<SelectChoice> dynamicChoices = (List<SelectChoice>) eval;
+                        if (selectChoices.size() == 1) {
+                            return dynamicChoices;
+                        }
                         for (SelectChoice dynamicChoice : dynamicChoices) {
                             returnedChoices.add(dynamicChoice);
                         }
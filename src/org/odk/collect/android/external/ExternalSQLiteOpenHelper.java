@@ -18,24 +18,22 @@
 
 package org.odk.collect.android.external;
 
-import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.util.Log;
-import au.com.bytecode.opencsv.CSVReader;
 import org.odk.collect.android.R;
 import org.odk.collect.android.application.Collect;
 import org.odk.collect.android.database.ODKSQLiteOpenHelper;
 import org.odk.collect.android.exception.ExternalDataException;
-import org.odk.collect.android.tasks.FormLoaderTask;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.IOException;
-import java.io.InputStreamReader;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
 
 /**
  * Author: Meletis Margaritis
@@ -45,200 +43,207 @@ import java.util.Map;
 public class ExternalSQLiteOpenHelper extends ODKSQLiteOpenHelper {
 
     private static final int VERSION = 1;
-    private static final char DELIMITING_CHAR = ",".charAt(0);
-    private static final char QUOTE_CHAR = "\"".charAt(0);
-    private static final char ESCAPE_CHAR = "\0".charAt(0);
 
-    private File dataSetFile;
-    private ExternalDataReader externalDataReader;
-    private FormLoaderTask formLoaderTask;
+    private File dbFile;
+    private Set<String> fullTextColumns;
 
     public ExternalSQLiteOpenHelper(File dbFile) {
         super(dbFile.getParentFile().getAbsolutePath(), dbFile.getName(), null, VERSION);
+        this.dbFile = dbFile;
     }
 
-    public void importFromCSV(File dataSetFile, ExternalDataReader externalDataReader, FormLoaderTask formLoaderTask) {
-        this.dataSetFile = dataSetFile;
-        this.externalDataReader = externalDataReader;
-        this.formLoaderTask = formLoaderTask;
+    public File getDbFile() {
+        return dbFile;
+    }
 
-        SQLiteDatabase writableDatabase = null;
+    /**
+     * Imports the csv into the database. Once the import has completed, the
+     * {@link ExternalDataManifest} of the csv is written and the database is
+     * stamped with its version, so an interrupted import is never mistaken for a
+     * complete one. If the database holds an interrupted import of the same csv,
+     * the import resumes where it stopped.
+     */
+    public void importFromCSV(File dataSetFile, ExternalDataReader externalDataReader, ExternalDataImportMonitor importMonitor) {
+        // the import commits in batches, which it cannot do inside the transaction
+        // getWritableDatabase() runs onCreate() in, so it opens the database itself
+        SQLiteDatabase db = null;
         try {
-            writableDatabase = getWritableDatabase();
-        } finally {
-            if (writableDatabase != null) {
-                writableDatabase.close();
+            db = SQLiteDatabase.openOrCreateDatabase(dbFile, null);
+            // an interrupted import is resumed from its last committed batch, so the
+            // commits go through a journal on disk. Syncing only at the critical
+            // moments keeps them cheap.
+            db.execSQL("PRAGMA synchronous=NORMAL");
+            Cursor c = db.rawQuery("PRAGMA journal_mode=TRUNCATE", null);
+            try {
+                c.moveToFirst();
+            } finally {
+                c.close();
             }
-        }
-    }
-
-    @Override
-    public void onCreate(SQLiteDatabase db) {
-        if (externalDataReader == null) {
-            // this means that the function handler needed the database through calling getReadableDatabase() --> getWritableDatabase(),
-            // but this is not allowed, so just return;
-            Log.e(ExternalDataUtil.LOGGER_NAME, "The function handler triggered this external data population. This is not good.");
-            return;
-        }
 
-        try {
-            onCreateNamed(db, ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME);
+            String dataSetName = dbFile.getName().substring(0, dbFile.getName().lastIndexOf("."));
+            ExternalCSVImporter importer = new ExternalCSVImporter(dataSetFile, dataSetName, importMonitor);
+            int rowCount = importer.importInto(db, ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME);
+            if (!importMonitor.isCancelled()) {
+                ExternalDataManifest.write(db, dataSetFile, importer.getSourceHash(), rowCount, ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME);
+                db.setVersion(VERSION);
+            }
         } catch (Exception e) {
             throw new ExternalDataException(Collect.getInstance().getString(R.string.ext_import_generic_error, dataSetFile.getName(), e.getMessage()), e);
+        } finally {
+            if (db != null) {
+                db.close();
+            }
         }
     }
 
-    private void onCreateNamed(SQLiteDatabase db, String tableName) throws Exception {
-        Log.w(ExternalDataUtil.LOGGER_NAME, "Reading data from '" + dataSetFile);
-
-        onProgress(Collect.getInstance().getString(R.string.ext_import_progress_message, dataSetFile.getName(), ""));
-
-        CSVReader reader = null;
+    /**
+     * @return true if the database file holds an interrupted import of the csv, which
+     * {@link #importFromCSV} can resume, and is not corrupt
+     */
+    public static boolean canResumeImport(File dbFile, File dataSetFile) {
+        SQLiteDatabase db = null;
         try {
-            reader = new CSVReader(new InputStreamReader(new FileInputStream(dataSetFile), "UTF-8"), DELIMITING_CHAR, QUOTE_CHAR, ESCAPE_CHAR);
-            String[] headerRow = reader.readNext();
-
-            if (!ExternalDataUtil.containsAnyData(headerRow)) {
-                throw new ExternalDataException(Collect.getInstance().getString(R.string.ext_file_no_data_error));
+            // read-write, so the journal of a commit that was cut short is rolled back
+            db = SQLiteDatabase.openDatabase(dbFile.getAbsolutePath(), null, SQLiteDatabase.OPEN_READWRITE);
+            if (db.getVersion() != 0 || ExternalCSVImporter.readCheckpoint(db, dataSetFile) == null) {
+                return false;
             }
-
-            List<String> conflictingColumns = ExternalDataUtil.findMatchingColumnsAfterSafeningNames(headerRow);
-
-            if (conflictingColumns != null && conflictingColumns.size() > 0) {
-                // this means that after removing invalid characters, some column names resulted with the same name,
-                // so the create table query will fail with "duplicate column" error.
-                throw new ExternalDataException(Collect.getInstance().getString(R.string.ext_conflicting_columns_error, conflictingColumns));
+            String check = DatabaseUtils.stringForQuery(db, "PRAGMA quick_check", null);
+            if (!"ok".equalsIgnoreCase(check)) {
+                Log.w(ExternalDataUtil.LOGGER_NAME, dbFile + " is corrupt, importing it again: " + check);
+                return false;
             }
+            return true;
+        } catch (SQLException e) {
+            Log.w(ExternalDataUtil.LOGGER_NAME, "Cannot read the import checkpoint of " + dbFile, e);
+            return false;
+        } finally {
+            if (db != null) {
+                db.close();
+            }
+        }
+    }
 
-            Map<String, String> columnNamesCache = new HashMap<String, String>();
-
-            StringBuilder sb = new StringBuilder();
-
-            boolean sortColumnAlreadyPresent = false;
-
-            sb.append("CREATE TABLE ");
-            sb.append(tableName);
-            sb.append(" ( ");
-            for (int i = 0; i < headerRow.length; i++) {
-                String columnName = headerRow[i].trim();
-                if (columnName.length() == 0) {
+    /**
+     * Indexes the columns a form looks rows up by, unless the dataset has no such
+     * column or already has an index that starts with it. Datasets whose import has
+     * not completed are left alone, a reimport would drop the indexes anyway.
+     *
+     * @param safeColumnNames the safe names of the columns
+     * @return the columns that were indexed
+     */
+    public static List<String> createIndexes(File dbFile, Collection<String> safeColumnNames) {
+        List<String> indexedColumns = new ArrayList<String>();
+        SQLiteDatabase db = null;
+        try {
+            db = SQLiteDatabase.openDatabase(dbFile.getAbsolutePath(), null, SQLiteDatabase.OPEN_READWRITE);
+            if (db.getVersion() != VERSION) {
+                return indexedColumns;
+            }
+            Set<String> tableColumns = getColumns(db, ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME);
+            Set<String> leadingColumns = getLeadingIndexColumns(db, ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME);
+            for (String column : safeColumnNames) {
+                if (!tableColumns.contains(column) || leadingColumns.contains(column)) {
                     continue;
                 }
-                if (i != 0) {
-                    sb.append(", ");
-                }
-                String safeColumnName = ExternalDataUtil.toSafeColumnName(columnName, columnNamesCache);
-                if (safeColumnName.equals(ExternalDataUtil.SORT_COLUMN_NAME)) {
-                    sortColumnAlreadyPresent = true;
-                    sb.append(safeColumnName).append(" real ");
-                } else {
-                    sb.append(safeColumnName).append(" text collate nocase ");
-                }
+                long start = System.currentTimeMillis();
+                db.execSQL("CREATE INDEX IF NOT EXISTS " + column + "_lookup_idx ON "
+                        + ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME + " (" + column + ")");
+                Log.w(ExternalDataUtil.LOGGER_NAME, "Indexed " + column + " of " + dbFile.getName() + " in "
+                        + (System.currentTimeMillis() - start) + "ms");
+                leadingColumns.add(column);
+                indexedColumns.add(column);
             }
-            if (!sortColumnAlreadyPresent) {
-                sb.append(", ");
-                sb.append(ExternalDataUtil.SORT_COLUMN_NAME).append(" real ");
+        } catch (SQLException e) {
+            Log.w(ExternalDataUtil.LOGGER_NAME, "Cannot index " + dbFile, e);
+        } finally {
+            if (db != null) {
+                db.close();
             }
+        }
+        return indexedColumns;
+    }
 
-            sb.append(" );");
-            String sql = sb.toString();
-
-            Log.w(ExternalDataUtil.LOGGER_NAME, "Creating database for " + dataSetFile + " with query: " + sql);
-            db.execSQL(sql);
-
-            // create the indexes.
-            // save the sql for later because inserts will be much faster if we don't have indexes already.
-            List<String> createIndexesCommands = new ArrayList<String>();
-            for (String header : headerRow) {
-                if (header.endsWith("_key")) {
-                    String indexSQL = "CREATE INDEX " + header + "_idx ON " + tableName + " (" + ExternalDataUtil.toSafeColumnName(header, columnNamesCache) + ");";
-                    createIndexesCommands.add(indexSQL);
-                    Log.w(ExternalDataUtil.LOGGER_NAME, "Will create an index on " + header + " later.");
-                }
+    private static Set<String> getColumns(SQLiteDatabase db, String tableName) {
+        Set<String> columns = new HashSet<String>();
+        Cursor c = db.rawQuery("PRAGMA table_info(" + tableName + ")", null);
+        try {
+            int nameIndex = c.getColumnIndex("name");
+            while (c.moveToNext()) {
+                columns.add(c.getString(nameIndex));
             }
+        } finally {
+            c.close();
+        }
+        return columns;
+    }
 
-            // populate the database
-            String[] row = reader.readNext();
-            int rowCount = 0;
-            while (row != null && !formLoaderTask.isCancelled()) {
-                // SCTO-894 - first we should make sure that this is not an empty line
-                if (!ExternalDataUtil.containsAnyData(row)) {
-                    // yes, that is an empty row, ignore it
-                    row = reader.readNext();
-                    continue;
-                }
-
-                // SCTO-894 - then check if the row contains less values than the header
-                // we should not ignore the existing values in the row,
-                // we will just fill up the rest with empty strings
-                if (row.length < headerRow.length) {
-                    row = ExternalDataUtil.fillUpNullValues(row, headerRow);
-                }
-
-                ContentValues values = new ContentValues();
-                if (!sortColumnAlreadyPresent) {
-                    values.put(ExternalDataUtil.SORT_COLUMN_NAME, rowCount + 1);
-                }
+    /**
+     * @return the first column of every index of the table
+     */
+    private static Set<String> getLeadingIndexColumns(SQLiteDatabase db, String tableName) {
+        List<String> indexes = new ArrayList<String>();
+        Cursor c = db.rawQuery("PRAGMA index_list(" + tableName + ")", null);
+        try {
+            int nameIndex = c.getColumnIndex("name");
+            while (c.moveToNext()) {
+                indexes.add(c.getString(nameIndex));
+            }
+        } finally {
+            c.close();
+        }
 
-                for (int i = 0; i < row.length && i < headerRow.length; i++) {
-                    String columnName = headerRow[i].trim();
-                    String columnValue = row[i];
-                    if (columnName.length() == 0) {
-                        continue;
-                    }
-                    String safeColumnName = ExternalDataUtil.toSafeColumnName(columnName, columnNamesCache);
-                    if (safeColumnName.equals(ExternalDataUtil.SORT_COLUMN_NAME)) {
-                        try {
-                            values.put(safeColumnName, Double.parseDouble(columnValue));
-                        } catch (NumberFormatException e) {
-                            throw new ExternalDataException(Collect.getInstance().getString(R.string.ext_sortBy_numeric_error, columnValue));
-                        }
-                    } else {
-                        values.put(safeColumnName, columnValue);
+        Set<String> columns = new HashSet<String>();
+        for (String index : indexes) {
+            c = db.rawQuery("PRAGMA index_info(" + index + ")", null);
+            try {
+                int seqIndex = c.getColumnIndex("seqno");
+                int nameIndex = c.getColumnIndex("name");
+                while (c.moveToNext()) {
+                    if (c.getInt(seqIndex) == 0) {
+                        columns.add(c.getString(nameIndex));
                     }
                 }
-                db.insertOrThrow(tableName, null, values);
-                row = reader.readNext();
-                rowCount++;
-                if (rowCount % 100 == 0) {
-                    onProgress(Collect.getInstance().getString(R.string.ext_import_progress_message, dataSetFile.getName(), " (" + rowCount + " records so far)"));
-                }
+            } finally {
+                c.close();
             }
+        }
+        return columns;
+    }
 
-            if (formLoaderTask.isCancelled()) {
-                Log.w(ExternalDataUtil.LOGGER_NAME, "User canceled reading data from " + dataSetFile);
-                onProgress(Collect.getInstance().getString(R.string.ext_import_cancelled_message));
-            } else {
-
-                onProgress(Collect.getInstance().getString(R.string.ext_import_finalizing_message));
-
-                // now create the indexes
-                for (String createIndexCommand : createIndexesCommands) {
-                    Log.w(ExternalDataUtil.LOGGER_NAME, createIndexCommand);
-                    db.execSQL(createIndexCommand);
+    /**
+     * @return the columns of the full text table, empty if the dataset has none
+     */
+    public synchronized Set<String> getFullTextColumns() {
+        if (fullTextColumns == null) {
+            Set<String> columns = new HashSet<String>();
+            Cursor c = null;
+            try {
+                c = getReadableDatabase().rawQuery("PRAGMA table_info(" + ExternalDataUtil.FULL_TEXT_TABLE_NAME + ")", null);
+                int nameIndex = c.getColumnIndex("name");
+                while (c.moveToNext()) {
+                    columns.add(c.getString(nameIndex));
                 }
-
-                Log.w(ExternalDataUtil.LOGGER_NAME, "Read all data from " + dataSetFile);
-                onProgress(Collect.getInstance().getString(R.string.ext_import_completed_message));
-            }
-        } finally {
-            if (reader != null) {
-                try {
-                    reader.close();
-                } catch (IOException e) {
-                    Log.e(ExternalDataUtil.LOGGER_NAME, e.getMessage(), e);
+            } catch (SQLException e) {
+                Log.w(ExternalDataUtil.LOGGER_NAME, "Cannot read the full text columns of " + dbFile, e);
+            } finally {
+                if (c != null) {
+                    c.close();
                 }
             }
+            fullTextColumns = columns;
         }
+        return fullTextColumns;
     }
 
     @Override
-    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+    public void onCreate(SQLiteDatabase db) {
+        // this means that the function handler needed the database through calling getReadableDatabase() --> getWritableDatabase(),
+        // but the data is only ever populated by importFromCSV(), so just return;
+        Log.e(ExternalDataUtil.LOGGER_NAME, "The function handler triggered this external data population. This is not good.");
     }
 
-    private void onProgress(String message) {
-        if (formLoaderTask != null) {
-            formLoaderTask.publishExternalDataLoadingProgress(message);
-        }
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
     }
 }
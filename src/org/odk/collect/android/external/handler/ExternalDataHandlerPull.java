@@ -19,11 +19,14 @@
 package org.odk.collect.android.external.handler;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.javarosa.core.model.condition.EvaluationContext;
 import org.javarosa.xpath.expr.XPathFuncExpr;
 import org.odk.collect.android.external.ExternalDataManager;
+import org.odk.collect.android.external.ExternalDataRowCache;
 import org.odk.collect.android.external.ExternalDataUtil;
 import org.odk.collect.android.external.ExternalSQLiteOpenHelper;
 
@@ -79,7 +82,6 @@ public class ExternalDataHandlerPull extends ExternalDataHandlerBase {
         // SCTO-545
         dataSetName = normalize(dataSetName);
 
-        Cursor c = null;
         try {
 
             ExternalSQLiteOpenHelper sqLiteOpenHelper = getExternalDataManager().getDatabase(dataSetName, false);
@@ -87,26 +89,57 @@ public class ExternalDataHandlerPull extends ExternalDataHandlerBase {
                 return "";
             }
 
-            SQLiteDatabase db = sqLiteOpenHelper.getReadableDatabase();
-            String[] columns = {ExternalDataUtil.toSafeColumnName(queriedColumn)};
-            String selection = ExternalDataUtil.toSafeColumnName(referenceColumn) + "=?";
-            String[] selectionArgs = {referenceValue};
-
-            c = db.query(ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME, columns, selection, selectionArgs, null, null, null);
-            if (c.getCount() > 0) {
-                c.moveToFirst();
-                return ExternalDataUtil.nullSafe(c.getString(0));
-            } else {
+            Map<String, String> row = getRow(sqLiteOpenHelper, ExternalDataUtil.toSafeColumnName(referenceColumn), referenceValue);
+            String safeQueriedColumn = ExternalDataUtil.toSafeColumnName(queriedColumn);
+            if (row.containsKey(safeQueriedColumn)) {
+                return ExternalDataUtil.nullSafe(row.get(safeQueriedColumn));
+            } else if (row.isEmpty()) {
                 Log.e(ExternalDataUtil.LOGGER_NAME, "Could not find a value in " + queriedColumn + " where the column " + referenceColumn + " has the value " + referenceValue);
                 return "";
+            } else {
+                Log.e(ExternalDataUtil.LOGGER_NAME, "There is no column " + queriedColumn + " in " + dataSetName);
+                return "";
             }
         } catch (Exception e) {
             Log.e(ExternalDataUtil.LOGGER_NAME, e.getMessage());
             return "";
+        }
+    }
+
+    /**
+     * Forms usually pull many columns of the same row, so the whole row is read on the
+     * first lookup and the other columns are served from {@link ExternalDataRowCache}.
+     *
+     * @return the first row whose reference column has the reference value, or an empty
+     * map if there is none
+     */
+    protected Map<String, String> getRow(ExternalSQLiteOpenHelper sqLiteOpenHelper, String safeReferenceColumn, String referenceValue) {
+        String dbPath = sqLiteOpenHelper.getDbFile().getAbsolutePath();
+        String key = ExternalDataRowCache.getKey(dbPath, safeReferenceColumn, referenceValue);
+        Map<String, String> row = ExternalDataRowCache.get(dbPath, key);
+        if (row != null) {
+            return row;
+        }
+
+        Cursor c = null;
+        try {
+            SQLiteDatabase db = sqLiteOpenHelper.getReadableDatabase();
+            String selection = safeReferenceColumn + "=?";
+            String[] selectionArgs = {referenceValue};
+
+            c = db.query(ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME, null, selection, selectionArgs, null, null, null, "1");
+            row = new HashMap<String, String>();
+            if (c.moveToFirst()) {
+                for (int columnIndex = 0; columnIndex < c.getColumnCount(); columnIndex++) {
+                    row.put(c.getColumnName(columnIndex), c.getString(columnIndex));
+                }
+            }
         } finally {
             if (c != null) {
                 c.close();
             }
         }
+        ExternalDataRowCache.put(key, row);
+        return row;
     }
 }
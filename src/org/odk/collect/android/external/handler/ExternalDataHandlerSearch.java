@@ -19,7 +19,9 @@
 package org.odk.collect.android.external.handler;
 
 import android.database.Cursor;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
 import org.javarosa.core.model.SelectChoice;
 import org.javarosa.core.model.condition.EvaluationContext;
 import org.javarosa.xpath.expr.XPathFuncExpr;
@@ -107,20 +109,15 @@ public class ExternalDataHandlerSearch extends ExternalDataHandlerBase {
 
         ExternalDataSearchType externalDataSearchType = ExternalDataSearchType.getByKeyword(searchType, ExternalDataSearchType.CONTAINS);
 
-        boolean searchRows = false;
-        boolean useFilter = false;
-
         if (queriedColumnsParam != null && queriedColumnsParam.trim().length() > 0) {
-            searchRows = true;
             queriedColumns = ExternalDataUtil.createListOfColumns(queriedColumnsParam);
         }
 
         String filterColumn = null;
         String filterValue = null;
         if (args.length == 6) {
-            filterColumn = XPathFuncExpr.toString(args[4]);
+            filterColumn = ExternalDataUtil.toSafeColumnName(XPathFuncExpr.toString(args[4]));
             filterValue = XPathFuncExpr.toString(args[5]);
-            useFilter = true;
         }
 
         // SCTO-545
@@ -142,36 +139,36 @@ public class ExternalDataHandlerSearch extends ExternalDataHandlerBase {
 
             String[] sqlColumns = columnsToFetch.toArray(new String[columnsToFetch.size()]);
 
-            String selection;
-            String[] selectionArgs;
-
-            if (searchRows && useFilter) {
-                selection = "( " + createLikeExpression(queriedColumns) + " ) AND " + ExternalDataUtil.toSafeColumnName(filterColumn) + "=? ";
-                String[] likeArgs = externalDataSearchType.constructLikeArguments(queriedValue, queriedColumns.size());
-                selectionArgs = new String[likeArgs.length + 1];
-                System.arraycopy(likeArgs, 0, selectionArgs, 0, likeArgs.length);
-                selectionArgs[selectionArgs.length - 1] = filterValue;
-            } else if (searchRows) {
-                selection = createLikeExpression(queriedColumns);
-                selectionArgs = externalDataSearchType.constructLikeArguments(queriedValue, queriedColumns.size());
-            } else if (useFilter) {
-                selection = ExternalDataUtil.toSafeColumnName(filterColumn) + "=? ";
-                selectionArgs = new String[]{filterValue};
-            } else {
-                selection = null;
-                selectionArgs = null;
+            // the full text table can only be used if it holds every queried column
+            String fullTextQuery = null;
+            if (queriedColumns != null && sqLiteOpenHelper.getFullTextColumns().containsAll(queriedColumns)) {
+                fullTextQuery = externalDataSearchType.getFullTextQuery(queriedValue);
             }
 
+            String selection = createSelection(queriedColumns, filterColumn, fullTextQuery);
+            String[] selectionArgs = createSelectionArgs(externalDataSearchType, queriedValue, queriedColumns, filterValue, fullTextQuery);
+            // only the first row of every value is listed, and only the rowids are read here.
+            // The choices themselves are read by the list, a page at a time.
+            String[] rowIdColumn = {"rowid"};
+            String safeValueColumn = selectColumnMap.keySet().iterator().next();
             try {
-                c = db.query(ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME, sqlColumns, selection, selectionArgs, null, null, ExternalDataUtil.SORT_COLUMN_NAME);
-            } catch (Exception e) {
-                if ( c != null ) { 
-                  c.close();
+                c = query(db, rowIdColumn, createDistinctSelection(safeValueColumn, selection), selectionArgs);
+            } catch (SQLException e) {
+                if (fullTextQuery == null) {
+                    throw e;
                 }
-                c = db.query(ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME, sqlColumns, selection, selectionArgs, null, null, null);
+                Log.w(ExternalDataUtil.LOGGER_NAME, "Full text search of " + dataSetName + " failed, falling back to LIKE.", e);
+                selection = createSelection(queriedColumns, filterColumn, null);
+                selectionArgs = createSelectionArgs(externalDataSearchType, queriedValue, queriedColumns, filterValue, null);
+                c = query(db, rowIdColumn, createDistinctSelection(safeValueColumn, selection), selectionArgs);
+            }
+
+            long[] rowIds = new long[c.getCount()];
+            for (int i = 0; c.moveToNext(); i++) {
+                rowIds[i] = c.getLong(0);
             }
 
-            return createDynamicSelectChoices(c, selectColumnMap, safeImageColumn);
+            return new ExternalSelectChoiceList(this, sqLiteOpenHelper, sqlColumns, selectColumnMap, safeImageColumn, rowIds);
         } finally {
             if (c != null) {
                 c.close();
@@ -179,6 +176,85 @@ public class ExternalDataHandlerSearch extends ExternalDataHandlerBase {
         }
     }
 
+    Cursor query(SQLiteDatabase db, String[] sqlColumns, String selection, String[] selectionArgs) {
+        Cursor c = null;
+        try {
+            c = db.query(ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME, sqlColumns, selection, selectionArgs, null, null, ExternalDataUtil.SORT_COLUMN_NAME);
+        } catch (Exception e) {
+            if ( c != null ) { 
+              c.close();
+            }
+            c = db.query(ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME, sqlColumns, selection, selectionArgs, null, null, null);
+        }
+        return c;
+    }
+
+    /**
+     * @return a selection of the first row, by rowid, of every value of the value column
+     * among the rows the selection matches. Values are grouped case sensitively, as the
+     * choices they become are, even though the column itself compares NOCASE.
+     */
+    protected String createDistinctSelection(String safeValueColumn, String selection) {
+        return "rowid IN (SELECT MIN(rowid) FROM " + ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME
+                + (selection == null ? "" : " WHERE " + selection) + " GROUP BY " + safeValueColumn
+                + " COLLATE BINARY)";
+    }
+
+    /**
+     * @param queriedColumns the searched columns, or null to return all rows
+     * @param filterColumn the column that has to equal the filter value, or null
+     * @param fullTextQuery the MATCH expression for the full text table, or null to use LIKE only
+     */
+    protected String createSelection(List<String> queriedColumns, String filterColumn, String fullTextQuery) {
+        if (queriedColumns != null && filterColumn != null) {
+            return "( " + createSearchExpression(queriedColumns, fullTextQuery) + " ) AND " + filterColumn + "=? ";
+        } else if (queriedColumns != null) {
+            return createSearchExpression(queriedColumns, fullTextQuery);
+        } else if (filterColumn != null) {
+            return filterColumn + "=? ";
+        } else {
+            return null;
+        }
+    }
+
+    protected String[] createSelectionArgs(ExternalDataSearchType externalDataSearchType, String queriedValue, List<String> queriedColumns,
+                                           String filterValue, String fullTextQuery) {
+        List<String> selectionArgs = new ArrayList<String>();
+        if (queriedColumns != null) {
+            String[] likeArgs = externalDataSearchType.constructLikeArguments(queriedValue, queriedColumns.size());
+            for (String likeArg : likeArgs) {
+                if (fullTextQuery != null) {
+                    selectionArgs.add(fullTextQuery);
+                }
+                selectionArgs.add(likeArg);
+            }
+        }
+        if (filterValue != null) {
+            selectionArgs.add(filterValue);
+        }
+        return selectionArgs.isEmpty() ? null : selectionArgs.toArray(new String[selectionArgs.size()]);
+    }
+
+    /**
+     * With a full text query, the LIKE of each column is only evaluated on the rows the
+     * full text table matched, instead of on every row.
+     */
+    protected String createSearchExpression(List<String> queriedColumns, String fullTextQuery) {
+        if (fullTextQuery == null) {
+            return createLikeExpression(queriedColumns);
+        }
+        StringBuilder sb = new StringBuilder();
+        for (String queriedColumn : queriedColumns) {
+            if (sb.length() > 0) {
+                sb.append(" OR ");
+            }
+            sb.append("( rowid IN (SELECT docid FROM ").append(ExternalDataUtil.FULL_TEXT_TABLE_NAME)
+                    .append(" WHERE ").append(queriedColumn).append(" MATCH ?) AND ")
+                    .append(queriedColumn).append(" LIKE ? )");
+        }
+        return sb.toString();
+    }
+
     protected ArrayList<SelectChoice> createDynamicSelectChoices(Cursor c, LinkedHashMap<String, String> selectColumnMap, String safeImageColumn) {
         List<String> columnsToExcludeFromLabels = new ArrayList<String>();
         if (safeImageColumn != null) {
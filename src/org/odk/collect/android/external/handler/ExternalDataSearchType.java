@@ -18,6 +18,8 @@
 
 package org.odk.collect.android.external.handler;
 
+import java.util.regex.Pattern;
+
 /**
  * Author: Meletis Margaritis
  * Date: 20/05/13
@@ -30,6 +32,9 @@ enum ExternalDataSearchType {
         protected String getSingleLikeArgument(String queriedValue) {
             return '%' + queriedValue + '%';
         }
+
+        // no full text query: the full text table only finds words by their start, and
+        // "contains" also matches the middle of a word, so it always uses LIKE
     },
 
     MATCHES("matches") {
@@ -37,6 +42,11 @@ enum ExternalDataSearchType {
         protected String getSingleLikeArgument(String queriedValue) {
             return queriedValue;
         }
+
+        @Override
+        protected String getFullTextQuery(String queriedValue) {
+            return toPhrase(queriedValue, false);
+        }
     },
 
     STARTS("startsWith") {
@@ -44,6 +54,11 @@ enum ExternalDataSearchType {
         protected String getSingleLikeArgument(String queriedValue) {
             return queriedValue + '%';
         }
+
+        @Override
+        protected String getFullTextQuery(String queriedValue) {
+            return toPhrase(queriedValue, true);
+        }
     },
 
     ENDS("endsWith") {
@@ -53,6 +68,9 @@ enum ExternalDataSearchType {
         }
     };
 
+    // the characters the fts3 "simple" tokenizer splits words on
+    private static final Pattern NON_TOKEN_CHARACTERS = Pattern.compile("[^A-Za-z0-9\\u0080-\\uffff]+");
+
     private final String keyword;
 
     ExternalDataSearchType(String keyword) {
@@ -85,4 +103,34 @@ enum ExternalDataSearchType {
     }
 
     protected abstract String getSingleLikeArgument(String queriedValue);
+
+    /**
+     * The MATCH expression for the full text table of a dataset. It must find every row the
+     * LIKE argument finds, so the LIKE only has to be evaluated on the rows it matched.
+     *
+     * @return the expression, or null if this search type cannot use the full text table
+     */
+    protected String getFullTextQuery(String queriedValue) {
+        return null;
+    }
+
+    /**
+     * @return the words of the value as an fts3 phrase, with the last word as a prefix if
+     * requested, or null if the value has no words
+     */
+    private static String toPhrase(String queriedValue, boolean prefix) {
+        StringBuilder sb = new StringBuilder();
+        for (String word : NON_TOKEN_CHARACTERS.split(queriedValue)) {
+            if (word.length() > 0) {
+                sb.append(sb.length() == 0 ? "\"" : " ").append(word);
+            }
+        }
+        if (sb.length() == 0) {
+            return null;
+        }
+        if (prefix) {
+            sb.append('*');
+        }
+        return sb.append('"').toString();
+    }
 }
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.external.handler;
+
+import android.database.Cursor;
+import android.support.v4.util.LruCache;
+import org.javarosa.core.model.SelectChoice;
+import org.odk.collect.android.external.ExternalDataUtil;
+import org.odk.collect.android.external.ExternalSQLiteOpenHelper;
+
+import java.util.AbstractList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * The choices returned by search(), read from the dataset a page at a time.
+ *
+ * Only the rowids of the matching rows, one per distinct value, are held for the
+ * whole result. A page of {@link #PAGE_SIZE} choices is built the first time one
+ * of its choices is asked for, and only the last {@link #MAX_PAGES} pages are kept,
+ * so a broad search over a large dataset does not allocate a choice per row.
+ */
+public class ExternalSelectChoiceList extends AbstractList<SelectChoice> implements RandomAccess {
+
+    static final int PAGE_SIZE = 50;
+    private static final int MAX_PAGES = 4;
+
+    private final ExternalDataHandlerSearch handler;
+    private final ExternalSQLiteOpenHelper sqLiteOpenHelper;
+    private final String[] sqlColumns;
+    private final LinkedHashMap<String, String> selectColumnMap;
+    private final String safeImageColumn;
+    private final long[] rowIds;
+
+    private final LruCache<Integer, List<SelectChoice>> pages = new LruCache<Integer, List<SelectChoice>>(MAX_PAGES);
+
+    ExternalSelectChoiceList(ExternalDataHandlerSearch handler, ExternalSQLiteOpenHelper sqLiteOpenHelper, String[] sqlColumns,
+                             LinkedHashMap<String, String> selectColumnMap, String safeImageColumn, long[] rowIds) {
+        this.handler = handler;
+        this.sqLiteOpenHelper = sqLiteOpenHelper;
+        this.sqlColumns = sqlColumns;
+        this.selectColumnMap = selectColumnMap;
+        this.safeImageColumn = safeImageColumn;
+        this.rowIds = rowIds;
+    }
+
+    @Override
+    public SelectChoice get(int location) {
+        if (location < 0 || location >= rowIds.length) {
+            throw new IndexOutOfBoundsException("Invalid index " + location + ", size is " + rowIds.length);
+        }
+        Integer page = location / PAGE_SIZE;
+        List<SelectChoice> choices = pages.get(page);
+        if (choices == null) {
+            choices = readPage(page);
+            pages.put(page, choices);
+        }
+        return choices.get(location % PAGE_SIZE);
+    }
+
+    @Override
+    public int size() {
+        return rowIds.length;
+    }
+
+    /**
+     * Finds a saved answer with one query for the rows holding the value, rather than
+     * reading every page of choices.
+     *
+     * @return the position of the choice with this value, or -1 if there is none
+     */
+    public int indexOfValue(String value) {
+        String[] rowIdColumn = {"rowid"};
+        String[] selectionArgs = {value};
+        // the value column comes first, and compares NOCASE unless told otherwise
+        Cursor c = sqLiteOpenHelper.getReadableDatabase().query(ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME, rowIdColumn,
+                sqlColumns[0] + " = ? COLLATE BINARY", selectionArgs, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                long rowId = c.getLong(0);
+                for (int i = 0; i < rowIds.length; i++) {
+                    if (rowIds[i] == rowId) {
+                        return i;
+                    }
+                }
+            }
+            return -1;
+        } finally {
+            c.close();
+        }
+    }
+
+    private List<SelectChoice> readPage(int page) {
+        int first = page * PAGE_SIZE;
+        int count = Math.min(PAGE_SIZE, rowIds.length - first);
+
+        StringBuilder selection = new StringBuilder("rowid IN (");
+        String[] selectionArgs = new String[count];
+        for (int i = 0; i < count; i++) {
+            selection.append(i == 0 ? "?" : ", ?");
+            selectionArgs[i] = String.valueOf(rowIds[first + i]);
+        }
+        selection.append(")");
+
+        Cursor c = null;
+        try {
+            c = handler.query(sqLiteOpenHelper.getReadableDatabase(), sqlColumns, selection.toString(), selectionArgs);
+            List<SelectChoice> choices = handler.createDynamicSelectChoices(c, selectColumnMap, safeImageColumn);
+            for (int i = 0; i < choices.size(); i++) {
+                choices.get(i).setIndex(first + i);
+            }
+            return choices;
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+    }
+}
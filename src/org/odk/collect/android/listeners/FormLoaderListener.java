@@ -21,6 +21,10 @@ import org.odk.collect.android.tasks.ProgressNotifier;
  * @author Carl Hartung (carlhartung@gmail.com)
  */
 public interface FormLoaderListener extends ProgressNotifier {
+    /**
+     * Called once the form is loaded. The time taken by each loading stage is
+     * available from {@link FormLoaderTask#getStageTimings()}.
+     */
     void loadingComplete(FormLoaderTask task);
     void loadingError(String errorMsg);
 }
@@ -17,9 +17,11 @@ package org.odk.collect.android.logic;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.zip.CRC32;
 
 import org.javarosa.core.model.FormDef;
 import org.javarosa.core.model.FormIndex;
@@ -34,14 +36,12 @@ import org.javarosa.core.model.data.StringData;
 import org.javarosa.core.model.instance.FormInstance;
 import org.javarosa.core.model.instance.TreeElement;
 import org.javarosa.core.services.IPropertyManager;
-import org.javarosa.core.services.PrototypeManager;
 import org.javarosa.core.services.transport.payload.ByteArrayPayload;
 import org.javarosa.form.api.FormEntryCaption;
 import org.javarosa.form.api.FormEntryController;
 import org.javarosa.form.api.FormEntryPrompt;
 import org.javarosa.model.xform.SMSSerializingVisitor;
 import org.javarosa.model.xform.XFormSerializingVisitor;
-import org.javarosa.model.xform.XFormsModule;
 import org.javarosa.model.xform.XPathReference;
 import org.javarosa.xform.parse.XFormParser;
 import org.javarosa.xpath.XPathParseTool;
@@ -91,38 +91,6 @@ public class FormController {
         }
     };
     
-    /**
-     * Classes needed to serialize objects. Need to put anything from JR in here.
-     */
-    private final static String[] SERIALIABLE_CLASSES = {
-    		"org.javarosa.core.services.locale.ResourceFileDataSource", // JavaRosaCoreModule
-    		"org.javarosa.core.services.locale.TableLocaleSource", // JavaRosaCoreModule
-            "org.javarosa.core.model.FormDef",
-			"org.javarosa.core.model.SubmissionProfile", // CoreModelModule
-			"org.javarosa.core.model.QuestionDef", // CoreModelModule
-			"org.javarosa.core.model.GroupDef", // CoreModelModule
-			"org.javarosa.core.model.instance.FormInstance", // CoreModelModule
-			"org.javarosa.core.model.data.BooleanData", // CoreModelModule
-			"org.javarosa.core.model.data.DateData", // CoreModelModule
-			"org.javarosa.core.model.data.DateTimeData", // CoreModelModule
-			"org.javarosa.core.model.data.DecimalData", // CoreModelModule
-			"org.javarosa.core.model.data.GeoPointData", // CoreModelModule
-			"org.javarosa.core.model.data.GeoShapeData", // CoreModelModule
-			"org.javarosa.core.model.data.GeoTraceData", // CoreModelModule
-			"org.javarosa.core.model.data.IntegerData", // CoreModelModule
-			"org.javarosa.core.model.data.LongData", // CoreModelModule
-			"org.javarosa.core.model.data.MultiPointerAnswerData", // CoreModelModule
-			"org.javarosa.core.model.data.PointerAnswerData", // CoreModelModule
-			"org.javarosa.core.model.data.SelectMultiData", // CoreModelModule
-			"org.javarosa.core.model.data.SelectOneData", // CoreModelModule
-			"org.javarosa.core.model.data.StringData", // CoreModelModule
-			"org.javarosa.core.model.data.TimeData", // CoreModelModule
-			"org.javarosa.core.model.data.UncastData", // CoreModelModule
-			"org.javarosa.core.model.data.helper.BasicDataPointer", // CoreModelModule
-			"org.javarosa.core.model.Action", // CoreModelModule
-			"org.javarosa.core.model.actions.SetValueAction" // CoreModelModule
-    };
-
     private static boolean isJavaRosaInitialized = false;
     
     /**
@@ -134,14 +102,7 @@ public class FormController {
      */
     public static synchronized void initializeJavaRosa(IPropertyManager mgr) {
 		if ( !isJavaRosaInitialized ) {
-            // need a list of classes that formdef uses
-            // unfortunately, the JR registerModule() functions do more than this.
-            // register just the classes that would have been registered by:
-            // new JavaRosaCoreModule().registerModule();
-            // new CoreModelModule().registerModule();
-            // replace with direct call to PrototypeManager
-            PrototypeManager.registerPrototypes(SERIALIABLE_CLASSES);
-            new XFormsModule().registerModule();
+            FormDefPrototypes.register();
 
             isJavaRosaInitialized = true;
 		}
@@ -151,10 +112,28 @@ public class FormController {
 				.setPropertyManager(mgr);
     }
 
+    /**
+     * Fingerprint of the classes registered for serialization. A serialized
+     * FormDef written with a different set of classes cannot be read back.
+     *
+     * @return crc32 of the registered class names
+     */
+    public static long getPrototypesFingerprint() {
+        CRC32 crc = new CRC32();
+        for (String className : FormDefPrototypes.getClassNames()) {
+            crc.update(className.getBytes());
+        }
+        return crc.getValue();
+    }
+
     private File mMediaFolder;
     private File mInstancePath;
     private FormEntryController mFormEntryController;
     private FormIndex mIndexWaitingForData = null;
+    // xpath (as returned by getXPath) of every event in the form, built on first lookup
+    private HashMap<String, FormIndex> mXPathIndex = null;
+    // compiled itemset queries, by the query attribute of the question
+    private HashMap<String, ItemsetQuery> mItemsetQueries = new HashMap<String, ItemsetQuery>();
 
     public FormController(File mediaFolder, FormEntryController fec, File instancePath) {
     	mMediaFolder = mediaFolder;
@@ -232,27 +211,67 @@ public class FormController {
     		Log.e(t, "Unexpected string from XPath");
     		throw new IllegalArgumentException("unexpected string from XPath");
     	} else {
-    		FormIndex returned = null;
-			FormIndex saved = getFormIndex();
-			// the only way I know how to do this is to step through the entire form
-			// until the XPath of a form entry matches that of the supplied XPath
-			try {
-				jumpToIndex(FormIndex.createBeginningOfFormIndex());
-				int event = stepToNextEvent(true);
-				while ( event != FormEntryController.EVENT_END_OF_FORM ) {
-					String candidateXPath = getXPath(getFormIndex());
-					// Log.i(t, "xpath: " + candidateXPath);
-					if ( candidateXPath.equals(xPath) ) {
-						returned = getFormIndex();
-						break;
-					}
-					event = stepToNextEvent(true);
+    		if ( mXPathIndex != null ) {
+    			FormIndex cached = mXPathIndex.get(xPath);
+    			if ( cached != null ) {
+    				return cached;
+    			}
+    		}
+    		// not indexed yet, or the xpath became relevant after the index was
+    		// built; (re)build the index and look again
+    		buildXPathIndex();
+    		return mXPathIndex.get(xPath);
+    	}
+    }
+
+    /**
+     * Steps through the entire form once and records the FormIndex of every
+     * event by its XPath.
+     */
+    private void buildXPathIndex() {
+    	long start = System.currentTimeMillis();
+    	HashMap<String, FormIndex> xPathIndex = new HashMap<String, FormIndex>();
+		FormIndex saved = getFormIndex();
+		try {
+			jumpToIndex(FormIndex.createBeginningOfFormIndex());
+			int event = stepToNextEvent(true);
+			while ( event != FormEntryController.EVENT_END_OF_FORM ) {
+				FormIndex index = getFormIndex();
+				String candidateXPath = getXPath(index);
+				if ( !xPathIndex.containsKey(candidateXPath) ) {
+					xPathIndex.put(candidateXPath, index);
 				}
-			} finally {
-				jumpToIndex(saved);
+				event = stepToNextEvent(true);
 			}
-			return returned;
-    	}
+		} finally {
+			jumpToIndex(saved);
+		}
+		mXPathIndex = xPathIndex;
+		Log.i(t, "Indexed " + xPathIndex.size() + " xpaths in "
+				+ (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /**
+     * Adding or deleting a repeat shifts the FormIndex of everything after it.
+     */
+    private void invalidateXPathIndex() {
+    	mXPathIndex = null;
+    }
+
+    /**
+     * Returns the compiled form of an itemset query. Queries are compiled once
+     * per form session and shared by every question using them, including
+     * all the instances of a question in a repeat.
+     *
+     * @param nodeset the query attribute of the question
+     */
+    public ItemsetQuery getItemsetQuery(String nodeset) {
+        ItemsetQuery query = mItemsetQueries.get(nodeset);
+        if (query == null) {
+            query = ItemsetQuery.compile(nodeset);
+            mItemsetQueries.put(nodeset, query);
+        }
+        return query;
     }
 
     /**
@@ -826,6 +845,7 @@ public class FormController {
      */
     public void newRepeat() {
         mFormEntryController.newRepeat();
+        invalidateXPathIndex();
     }
 
 
@@ -836,6 +856,7 @@ public class FormController {
      */
     public void deleteRepeat() {
         FormIndex fi = mFormEntryController.deleteRepeat();
+        invalidateXPathIndex();
         mFormEntryController.jumpToIndex(fi);
     }
 
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.logic;
+
+import org.javarosa.core.services.PrototypeManager;
+import org.javarosa.model.xform.XFormsModule;
+
+/**
+ * The javarosa classes a FormDef is serialized with. Kept free of Android
+ * classes, so the FormDef benchmark can set up serialization exactly as the
+ * app does.
+ */
+public final class FormDefPrototypes {
+
+    /**
+     * Classes needed to serialize objects. Need to put anything from JR in here.
+     */
+    private final static String[] SERIALIABLE_CLASSES = {
+            "org.javarosa.core.services.locale.ResourceFileDataSource", // JavaRosaCoreModule
+            "org.javarosa.core.services.locale.TableLocaleSource", // JavaRosaCoreModule
+            "org.javarosa.core.model.FormDef",
+            "org.javarosa.core.model.SubmissionProfile", // CoreModelModule
+            "org.javarosa.core.model.QuestionDef", // CoreModelModule
+            "org.javarosa.core.model.GroupDef", // CoreModelModule
+            "org.javarosa.core.model.instance.FormInstance", // CoreModelModule
+            "org.javarosa.core.model.data.BooleanData", // CoreModelModule
+            "org.javarosa.core.model.data.DateData", // CoreModelModule
+            "org.javarosa.core.model.data.DateTimeData", // CoreModelModule
+            "org.javarosa.core.model.data.DecimalData", // CoreModelModule
+            "org.javarosa.core.model.data.GeoPointData", // CoreModelModule
+            "org.javarosa.core.model.data.GeoShapeData", // CoreModelModule
+            "org.javarosa.core.model.data.GeoTraceData", // CoreModelModule
+            "org.javarosa.core.model.data.IntegerData", // CoreModelModule
+            "org.javarosa.core.model.data.LongData", // CoreModelModule
+            "org.javarosa.core.model.data.MultiPointerAnswerData", // CoreModelModule
+            "org.javarosa.core.model.data.PointerAnswerData", // CoreModelModule
+            "org.javarosa.core.model.data.SelectMultiData", // CoreModelModule
+            "org.javarosa.core.model.data.SelectOneData", // CoreModelModule
+            "org.javarosa.core.model.data.StringData", // CoreModelModule
+            "org.javarosa.core.model.data.TimeData", // CoreModelModule
+            "org.javarosa.core.model.data.UncastData", // CoreModelModule
+            "org.javarosa.core.model.data.helper.BasicDataPointer", // CoreModelModule
+            "org.javarosa.core.model.Action", // CoreModelModule
+            "org.javarosa.core.model.actions.SetValueAction" // CoreModelModule
+    };
+
+    private FormDefPrototypes() {
+    }
+
+    /**
+     * Registers the prototypes. The JR registerModule() functions do more than
+     * this, so only the classes that would have been registered by
+     * new JavaRosaCoreModule().registerModule() and
+     * new CoreModelModule().registerModule() are registered directly.
+     */
+    public static void register() {
+        PrototypeManager.registerPrototypes(SERIALIABLE_CLASSES);
+        new XFormsModule().registerModule();
+    }
+
+    /**
+     * @return a copy of the registered class names, in registration order
+     */
+    public static String[] getClassNames() {
+        return SERIALIABLE_CLASSES.clone();
+    }
+}
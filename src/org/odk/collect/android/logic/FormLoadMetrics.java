@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.logic;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Time taken by each phase of opening a form, in milliseconds.
+ *
+ * The phases of the FormLoaderTask come first, followed by the phases measured
+ * by the form entry screen once the form has been handed over to it.
+ */
+public class FormLoadMetrics {
+
+    public static final String PHASE_LOADING_COMPLETE = "loading_complete";
+    public static final String PHASE_FIRST_VIEW = "first_view";
+
+    private final String mFormPath;
+    private final String mFormHash;
+    private String mInstancePath;
+    private final Map<String, Long> mPhases = new LinkedHashMap<String, Long>();
+
+    public FormLoadMetrics(String formPath, String formHash, Map<String, Long> loaderPhases) {
+        mFormPath = formPath;
+        mFormHash = formHash;
+        if (loaderPhases != null) {
+            mPhases.putAll(loaderPhases);
+        }
+    }
+
+    public String getFormPath() {
+        return mFormPath;
+    }
+
+    /**
+     * @return md5 of the form file, which identifies the form version
+     */
+    public String getFormHash() {
+        return mFormHash;
+    }
+
+    public String getInstancePath() {
+        return mInstancePath;
+    }
+
+    public void setInstancePath(String instancePath) {
+        mInstancePath = instancePath;
+    }
+
+    public void record(String phase, long millis) {
+        mPhases.put(phase, millis);
+    }
+
+    public Map<String, Long> getPhases() {
+        return mPhases;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Long> phase : mPhases.entrySet()) {
+            if (sb.length() != 0) {
+                sb.append('\n');
+            }
+            sb.append(phase.getKey()).append(": ").append(phase.getValue()).append("ms");
+        }
+        return sb.toString();
+    }
+}
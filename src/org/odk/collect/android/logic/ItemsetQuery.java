@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.logic;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.javarosa.core.model.IFormElement;
+import org.javarosa.core.model.QuestionDef;
+import org.javarosa.xpath.XPathParseTool;
+import org.javarosa.xpath.expr.XPathExpression;
+import org.javarosa.xpath.parser.XPathSyntaxException;
+
+import android.util.Log;
+
+/**
+ * The "query" attribute of an itemset question, split into the database
+ * selection it stands for.
+ *
+ * The format of the query should be something like this:
+ * query="instance('cities')/root/item[state=/data/state and county=/data/county]"
+ * which selects the rows of list 'cities' whose state and county columns
+ * equal the values of the given XPath expressions.
+ *
+ * A query returned by {@link #compile(String)} also holds the parsed
+ * expressions, so it can be evaluated over and over without parsing anything.
+ */
+public class ItemsetQuery {
+
+    private static final String t = "ItemsetQuery";
+
+    public static final String QUERY_ATTRIBUTE = "query";
+    public static final String LIST_NAME_COLUMN = "list_name";
+
+    private final String mListName;
+    private final String mSelection;
+    private final List<String> mColumns;
+    private final List<String> mArguments;
+    private List<XPathExpression> mExpressions = null;
+
+    private ItemsetQuery(String listName, String selection, List<String> columns,
+            List<String> arguments) {
+        mListName = listName;
+        mSelection = selection;
+        mColumns = columns;
+        mArguments = arguments;
+    }
+
+    /**
+     * @return the list name, which is always the first selection argument
+     */
+    public String getListName() {
+        return mListName;
+    }
+
+    /**
+     * @return the where clause, with a ? for the list name and for every
+     *         argument
+     */
+    public String getSelection() {
+        return mSelection;
+    }
+
+    /**
+     * @return the columns compared in the selection, not including list_name
+     */
+    public List<String> getColumns() {
+        return mColumns;
+    }
+
+    /**
+     * @return the XPath expressions the columns are compared with
+     */
+    public List<String> getArguments() {
+        return mArguments;
+    }
+
+    /**
+     * @return the parsed arguments, in the order of {@link #getArguments()},
+     *         with null for an argument that is not a valid XPath expression;
+     *         null if the query was not compiled
+     */
+    public List<XPathExpression> getExpressions() {
+        return mExpressions;
+    }
+
+    /**
+     * Parse the query attribute and each of its XPath arguments.
+     */
+    public static ItemsetQuery compile(String nodesetStr) {
+        ItemsetQuery query = parse(nodesetStr);
+        List<XPathExpression> expressions = new ArrayList<XPathExpression>();
+        for (String argument : query.mArguments) {
+            XPathExpression xpr = null;
+            try {
+                xpr = XPathParseTool.parseXPath(argument);
+            } catch (XPathSyntaxException e) {
+                Log.e(t, "Unable to parse \"" + argument + "\"", e);
+            }
+            expressions.add(xpr);
+        }
+        query.mExpressions = expressions;
+        return query;
+    }
+
+    public static ItemsetQuery parse(String nodesetStr) {
+        // parse out the list name, between the ''
+        String listName = nodesetStr.substring(nodesetStr.indexOf("'") + 1,
+                nodesetStr.lastIndexOf("'"));
+
+        // isolate the string between between the [ ] characters
+        String queryString = nodesetStr.substring(nodesetStr.indexOf("[") + 1,
+                nodesetStr.lastIndexOf("]"));
+
+        StringBuilder selection = new StringBuilder();
+        // add the list name as the first argument, which will always be there
+        selection.append(LIST_NAME_COLUMN + "=?");
+
+        // check to see if there are any arguments
+        if (queryString.indexOf("=") != -1) {
+            selection.append(" and ");
+        }
+
+        // can't just split on 'and' or 'or' because they have different
+        // behavior, so loop through and break them off until we don't have any
+        // more
+        // must include the spaces in indexOf so we don't match words like
+        // "land"
+        int andIndex = -1;
+        int orIndex = -1;
+        List<String> columns = new ArrayList<String>();
+        List<String> arguments = new ArrayList<String>();
+        while ((andIndex = queryString.indexOf(" and ")) != -1
+                || (orIndex = queryString.indexOf(" or ")) != -1) {
+            if (andIndex != -1) {
+                String subString = queryString.substring(0, andIndex);
+                String pair[] = subString.split("=");
+                if (pair.length == 2) {
+                    selection.append(pair[0].trim() + "=? and ");
+                    columns.add(pair[0].trim());
+                    arguments.add(pair[1].trim());
+                } else {
+                    // parse error
+                }
+                // move string forward to after " and "
+                queryString = queryString.substring(andIndex + 5, queryString.length());
+                andIndex = -1;
+            } else if (orIndex != -1) {
+                String subString = queryString.substring(0, orIndex);
+                String pair[] = subString.split("=");
+                if (pair.length == 2) {
+                    selection.append(pair[0].trim() + "=? or ");
+                    columns.add(pair[0].trim());
+                    arguments.add(pair[1].trim());
+                } else {
+                    // parse error
+                }
+
+                // move string forward to after " or "
+                queryString = queryString.substring(orIndex + 4, queryString.length());
+                orIndex = -1;
+            }
+        }
+
+        // parse the last segment (or only segment if there are no 'and' or 'or'
+        // clauses
+        String pair[] = queryString.split("=");
+        if (pair.length == 2) {
+            selection.append(pair[0].trim() + "=?");
+            columns.add(pair[0].trim());
+            arguments.add(pair[1].trim());
+        }
+        // with a single segment all items in the list are selected
+
+        return new ItemsetQuery(listName, selection.toString(), columns, arguments);
+    }
+
+    /**
+     * @return the parsed query attribute of every itemset question in the form
+     */
+    public static List<ItemsetQuery> findAll(IFormElement form) {
+        List<ItemsetQuery> queries = new ArrayList<ItemsetQuery>();
+        collect(form, queries);
+        return queries;
+    }
+
+    private static void collect(IFormElement element, List<ItemsetQuery> queries) {
+        if (element instanceof QuestionDef) {
+            String nodeset = ((QuestionDef) element).getAdditionalAttribute(null, QUERY_ATTRIBUTE);
+            if (nodeset != null) {
+                try {
+                    queries.add(parse(nodeset));
+                } catch (StringIndexOutOfBoundsException e) {
+                    // the widget reports malformed queries when it is shown
+                }
+            }
+        }
+        if (element.getChildren() != null) {
+            for (int i = 0; i < element.getChildren().size(); i++) {
+                collect(element.getChildren().get(i), queries);
+            }
+        }
+    }
+}
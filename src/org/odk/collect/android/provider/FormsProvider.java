@@ -22,6 +22,7 @@ import java.util.Locale;
 
 import org.odk.collect.android.R;
 import org.odk.collect.android.application.Collect;
+import org.odk.collect.android.database.FormDefCacheDbAdapter;
 import org.odk.collect.android.database.ItemsetDbAdapter;
 import org.odk.collect.android.database.ODKSQLiteOpenHelper;
 import org.odk.collect.android.provider.FormsProviderAPI.FormsColumns;
@@ -439,6 +440,24 @@ public class FormsProvider extends ContentProvider {
 		}
 	}
 
+	/**
+	 * Removes the form file and its media folder from the formdef cache
+	 * index, so the index does not grow with every form ever deleted.
+	 */
+	private void deleteFormDefCacheEntry(String formFilePath) {
+		FormDefCacheDbAdapter fcda = new FormDefCacheDbAdapter();
+		try {
+			fcda.open();
+			fcda.delete(formFilePath);
+			fcda.deleteMediaState(new File(FileUtils
+					.constructMediaPath(formFilePath)).getAbsolutePath());
+		} catch (SQLException e) {
+			Log.e(t, "Unable to update the formdef cache index", e);
+		} finally {
+			fcda.close();
+		}
+	}
+
 	/**
 	 * This method removes the entry from the content provider, and also removes
 	 * any associated files. files: form.xml, [formmd5].formdef, formname-media
@@ -467,6 +486,7 @@ public class FormsProvider extends ContentProvider {
 						deleteFileOrDir(formFilePath);
 						deleteFileOrDir(del.getString(del
 								.getColumnIndex(FormsColumns.FORM_MEDIA_PATH)));
+						deleteFormDefCacheEntry(formFilePath);
 					} while (del.moveToNext());
 				}
 			} finally {
@@ -496,12 +516,13 @@ public class FormsProvider extends ContentProvider {
 						deleteFileOrDir(formFilePath);
 						deleteFileOrDir(c.getString(c
 							.getColumnIndex(FormsColumns.FORM_MEDIA_PATH)));
+						deleteFormDefCacheEntry(formFilePath);
 
 						try {
-                            // get rid of the old tables
+                            // release the itemsets table, other forms may share it
                             ItemsetDbAdapter ida = new ItemsetDbAdapter();
                             ida.open();
-                            ida.delete(c.getString(c
+                            ida.release(c.getString(c
                                     .getColumnIndex(FormsColumns.FORM_MEDIA_PATH))
                                     + "/itemsets.csv");
                             ida.close();
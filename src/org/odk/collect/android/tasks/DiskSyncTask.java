@@ -23,9 +23,11 @@ import java.util.List;
 
 import org.odk.collect.android.R;
 import org.odk.collect.android.application.Collect;
+import org.odk.collect.android.database.FormDefCacheDbAdapter;
 import org.odk.collect.android.listeners.DiskSyncListener;
 import org.odk.collect.android.provider.FormsProviderAPI.FormsColumns;
 import org.odk.collect.android.utilities.FileUtils;
+import org.odk.collect.android.utilities.FormDefCacheManager;
 
 import android.content.ContentValues;
 import android.database.Cursor;
@@ -97,6 +99,14 @@ public class DiskSyncTask extends AsyncTask<Void, String, String> {
 	            // and see if it has changed.
 	            List<UriFile> uriToUpdate = new ArrayList<UriFile>();
 		        Cursor mCursor = null;
+		        // remembers which media folders were found unchanged before
+		        FormDefCacheDbAdapter fcda = new FormDefCacheDbAdapter();
+		        try {
+		        	fcda.open();
+		        } catch (SQLException e) {
+		        	Log.e(t, "["+instance+"] Unable to open the formdef cache index", e);
+		        	fcda = null;
+		        }
 		        // open the cursor within a try-catch block so it can always be closed. 
 		        try {
 		            mCursor = Collect.getInstance().getContentResolver()
@@ -125,6 +135,11 @@ public class DiskSyncTask extends AsyncTask<Void, String, String> {
 		                        String id = mCursor.getString(mCursor.getColumnIndex(FormsColumns._ID));
 		                        Uri updateUri = Uri.withAppendedPath(FormsColumns.CONTENT_URI, id);
 		                        uriToUpdate.add(new UriFile(updateUri, sqlFile));
+		                    } else if (FormLoaderTask.hasPendingExternalData(
+		                    		new File(FileUtils.constructMediaPath(sqlFilename)), fcda)) {
+		                    	// new data files were copied next to an unchanged form;
+		                    	// import them now rather than when the form is opened
+		                    	FormPrecompiler.enqueue(sqlFile);
 		                    }
 		                } else {
 		                	Log.w(t, "["+instance+"] file referenced by content provider does not exist " + sqlFile);
@@ -134,6 +149,9 @@ public class DiskSyncTask extends AsyncTask<Void, String, String> {
 		        	if ( mCursor != null ) {
 		        		mCursor.close();
 		        	}
+		        	if ( fcda != null ) {
+		        		fcda.close();
+		        	}
 		        }
 	            
 		        // Step3: go through uriToUpdate to parse and update each in turn.
@@ -161,6 +179,7 @@ public class DiskSyncTask extends AsyncTask<Void, String, String> {
 	                        Collect.getInstance().getContentResolver()
 	                                .update(updateUri, values, null, null);
 	                    Log.i(t, "["+instance+"] " + count + " records successfully updated");
+	                FormPrecompiler.enqueue(formDefFile);
 		        }
 		        uriToUpdate.clear();
 		        
@@ -198,11 +217,15 @@ public class DiskSyncTask extends AsyncTask<Void, String, String> {
 		        		// DiskSync scanners are active.
 		        		Collect.getInstance().getContentResolver()
 		            				.insert(FormsColumns.CONTENT_URI, values);
+		        		FormPrecompiler.enqueue(formDefFile);
 		        	} catch ( SQLException e ) {
 		        		Log.i(t, "["+instance+"] " + e.toString());
 		        	}
 	            }
 	        }
+	        // drop cached forms of revisions that are gone, and trim the cache
+	        FormDefCacheManager.trim();
+
 	        if ( errors.length() != 0 ) {
 	        	statusMessage = errors.toString();
 	        } else {
@@ -150,6 +150,9 @@ public class DownloadFormsTask extends
 
                         FileUtils.moveMediaFiles(tempMediaPath, formMediaPath);
                     }
+
+                    // parse the form and import its data before it is first opened
+                    FormPrecompiler.enqueue(fileResult.getFile());
                 } catch (IOException e) {
                     Log.e(t, e.getMessage());
 
@@ -14,17 +14,26 @@
 
 package org.odk.collect.android.tasks;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.FileReader;
+import java.io.FilenameFilter;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
 
 import org.apache.commons.io.IOUtils;
 import org.javarosa.core.model.FormDef;
@@ -35,8 +44,6 @@ import org.javarosa.core.model.instance.TreeReference;
 import org.javarosa.core.model.instance.utils.DefaultAnswerResolver;
 import org.javarosa.core.reference.ReferenceManager;
 import org.javarosa.core.reference.RootTranslator;
-import org.javarosa.core.util.externalizable.DeserializationException;
-import org.javarosa.core.util.externalizable.ExtUtil;
 import org.javarosa.debug.Event;
 import org.javarosa.debug.EventNotifier;
 import org.javarosa.form.api.FormEntryController;
@@ -47,23 +54,36 @@ import org.javarosa.xform.util.XFormUtils;
 import org.javarosa.xpath.XPathTypeMismatchException;
 import org.odk.collect.android.R;
 import org.odk.collect.android.application.Collect;
+import org.odk.collect.android.database.FormDefCacheDbAdapter;
 import org.odk.collect.android.database.ItemsetDbAdapter;
 import org.odk.collect.android.external.ExternalAnswerResolver;
 import org.odk.collect.android.external.ExternalDataHandler;
+import org.odk.collect.android.external.ExternalDataImportMonitor;
+import org.odk.collect.android.external.ExternalDataLookup;
 import org.odk.collect.android.external.ExternalDataManager;
 import org.odk.collect.android.external.ExternalDataManagerImpl;
+import org.odk.collect.android.external.ExternalDataManifest;
 import org.odk.collect.android.external.ExternalDataReader;
 import org.odk.collect.android.external.ExternalDataReaderImpl;
+import org.odk.collect.android.external.ExternalDataUtil;
+import org.odk.collect.android.external.ExternalSQLiteOpenHelper;
 import org.odk.collect.android.external.handler.ExternalDataHandlerPull;
 import org.odk.collect.android.listeners.FormLoaderListener;
 import org.odk.collect.android.logic.FileReferenceFactory;
 import org.odk.collect.android.logic.FormController;
+import org.odk.collect.android.logic.ItemsetQuery;
 import org.odk.collect.android.preferences.AdminPreferencesActivity;
 import org.odk.collect.android.utilities.FileUtils;
+import org.odk.collect.android.utilities.FormDefCacheFile;
+import org.odk.collect.android.utilities.FormDefMemoryCache;
+import org.odk.collect.android.utilities.ItemsetResultCache;
+import org.odk.collect.android.utilities.SavedInstanceParser;
 import org.odk.collect.android.utilities.ZipUtils;
+import org.xmlpull.v1.XmlPullParserException;
 
 import android.content.Intent;
 import android.database.Cursor;
+import android.database.SQLException;
 import android.os.AsyncTask;
 import android.util.Log;
 import au.com.bytecode.opencsv.CSVReader;
@@ -74,10 +94,30 @@ import au.com.bytecode.opencsv.CSVReader;
  * @author Carl Hartung (carlhartung@gmail.com)
  * @author Yaw Anokwa (yanokwa@gmail.com)
  */
-public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FECWrapper> {
+public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FECWrapper>
+    implements ExternalDataImportMonitor {
   private final static String t = "FormLoaderTask";
   private static final String ITEMSETS_CSV = "itemsets.csv";
 
+  public static final String STAGE_HASH = "hash";
+  public static final String STAGE_FORM_DEF = "formdef";
+  public static final String STAGE_INSTANCE = "instance";
+  public static final String STAGE_ITEMSETS = "itemsets";
+  public static final String STAGE_EXTERNAL_DATA = "external_data";
+  public static final String STAGE_ITEMSET_INDEXES = "itemset_indexes";
+  public static final String STAGE_EXTERNAL_DATA_INDEXES = "external_data_indexes";
+  // steps within the itemsets and external data stages
+  public static final String STAGE_ITEMSETS_HASH = "itemsets_hash";
+  public static final String STAGE_ITEMSETS_UPDATE = "itemsets_update";
+  public static final String STAGE_ITEMSETS_IMPORT = "itemsets_import";
+  public static final String STAGE_EXTERNAL_DATA_EXTRACT = "external_data_extract";
+
+  // the loader and the precompiler share the imports, one at a time each
+  private static final Object ITEMSETS_IMPORT_LOCK = new Object();
+  private static final Object EXTERNAL_DATA_IMPORT_LOCK = new Object();
+  // itemsets.csv rows read between two checks for a cancelled import
+  private static final int ITEMSETS_CANCEL_CHECK_ROWS = 5000;
+
   private FormLoaderListener mStateListener;
   private String mErrorMsg;
   private String mInstancePath;
@@ -88,6 +128,9 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
   private int resultCode = 0;
   private Intent intent = null;
   private ExternalDataManager externalDataManager;
+  private String mFormHash;
+  private List<String> mItemsetIndexes = new ArrayList<String>();
+  private final Map<String, Long> mStageTimings = new LinkedHashMap<String, Long>();
 
   protected class FECWrapper {
     FormController controller;
@@ -134,8 +177,59 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
     String formPath = path[0];
 
     File formXml = new File(formPath);
-    String formHash = FileUtils.getMd5Hash(formXml);
-    File formBin = new File(Collect.CACHE_PATH + File.separator + formHash + ".formdef");
+
+    // set paths to /sdcard/odk/forms/formfilename-media/
+    String formFileName = formXml.getName().substring(0, formXml.getName().lastIndexOf("."));
+    final File formMediaDir = new File(formXml.getParent(), formFileName + "-media");
+    final File formDefinition = formXml;
+
+    // choices shown by itemset questions are only kept for one form session
+    ItemsetResultCache.clear();
+
+    // The data imports do not depend on the FormDef, so run them while the form
+    // is being loaded. External data must be in place before the form is
+    // initialized (calculates may call pulldata()), itemsets only once the
+    // form is displayed. The itemsets.csv may come out of a zip file, so its
+    // import waits until the zip files have been extracted.
+    final CountDownLatch mediaExtracted = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    Future<?> externalDataImport = executor.submit(new Runnable() {
+      @Override
+      public void run() {
+        long start = System.currentTimeMillis();
+        loadExternalData(formMediaDir, FormLoaderTask.this, mediaExtracted);
+        recordStageTiming(STAGE_EXTERNAL_DATA, start);
+        // pulldata() is called as soon as the form is initialized, so the
+        // indexes are created before that
+        long indexStart = System.currentTimeMillis();
+        List<String> indexes = indexExternalData(formMediaDir, formDefinition);
+        recordStageTiming(STAGE_EXTERNAL_DATA_INDEXES, indexStart);
+        if (!indexes.isEmpty()) {
+          Log.i(t, "External data indexes created: " + indexes);
+        }
+      }
+    });
+    Future<?> itemsetsImport = executor.submit(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          mediaExtracted.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+        long start = System.currentTimeMillis();
+        importItemsets(formMediaDir, FormLoaderTask.this);
+        recordStageTiming(STAGE_ITEMSETS, start);
+      }
+    });
+    executor.shutdown();
+
+    long hashStart = System.currentTimeMillis();
+    String formHash = getFormHash(formXml);
+    mFormHash = formHash;
+    recordStageTiming(STAGE_HASH, hashStart);
+    File formBin = new File(FormDefCacheDbAdapter.getFormDefPath(formHash));
 
     publishProgress(Collect.getInstance().getString(R.string.survey_loading_reading_form_message));
 
@@ -150,31 +244,50 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
 //      }
 //    });
 
-    if (formBin.exists()) {
+    long formDefStart = System.currentTimeMillis();
+
+    // forms opened earlier in this process are kept in memory
+    fd = FormDefMemoryCache.get(formHash);
+    if (fd != null) {
+      Log.i(t, "Loaded " + formXml.getName() + " from memory. " + FormDefMemoryCache.getStats());
+    }
+
+    if (fd == null && formBin.exists()) {
       // if we have binary, deserialize binary
       Log.i(
           t,
           "Attempting to load " + formXml.getName() + " from cached file: "
               + formBin.getAbsolutePath());
-      fd = deserializeFormDef(formBin);
+      long start = System.currentTimeMillis();
+      byte[] payload = FormDefCacheFile.readPayload(formBin);
+      if (payload != null) {
+        fd = FormDefCacheFile.deserialize(payload);
+      }
+      Log.i(t, "Deserialized " + formBin.getName() + " in "
+          + (System.currentTimeMillis() - start) + "ms");
       if (fd == null) {
         // some error occured with deserialization. Remove the file, and make a
         // new .formdef
         // from xml
         Log.w(t, "Deserialization FAILED!  Deleting cache file: " + formBin.getAbsolutePath());
         formBin.delete();
+      } else {
+        FormDefMemoryCache.put(formHash, payload);
       }
     }
     if (fd == null) {
       // no binary, read from xml
       try {
         Log.i(t, "Attempting to load from: " + formXml.getAbsolutePath());
+        long start = System.currentTimeMillis();
         fis = new FileInputStream(formXml);
         fd = XFormUtils.getFormFromInputStream(fis);
+        Log.i(t, "Parsed " + formXml.getName() + " in "
+            + (System.currentTimeMillis() - start) + "ms");
         if (fd == null) {
           mErrorMsg = "Error reading XForm file";
         } else {
-          serializeFormDef(fd, formPath);
+          serializeFormDef(fd, formHash);
         }
       } catch (FileNotFoundException e) {
         e.printStackTrace();
@@ -190,25 +303,19 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
       }
     }
 
+    recordStageTiming(STAGE_FORM_DEF, formDefStart);
+
     if (mErrorMsg != null || fd == null) {
       return null;
     }
 
-    // set paths to /sdcard/odk/forms/formfilename-media/
-    String formFileName = formXml.getName().substring(0, formXml.getName().lastIndexOf("."));
-    File formMediaDir = new File(formXml.getParent(), formFileName + "-media");
-
     externalDataManager = new ExternalDataManagerImpl(formMediaDir);
 
     // add external data function handlers
     ExternalDataHandler externalDataHandlerPull = new ExternalDataHandlerPull(externalDataManager);
     fd.getEvaluationContext().addFunctionHandler(externalDataHandlerPull);
 
-    try {
-      loadExternalData(formMediaDir);
-    } catch (Exception e) {
-      mErrorMsg = e.getMessage();
-      e.printStackTrace();
+    if (!awaitStage(externalDataImport)) {
       return null;
     }
 
@@ -222,6 +329,7 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
     fec = new FormEntryController(fem);
 
     boolean usedSavepoint = false;
+    long instanceStart = System.currentTimeMillis();
 
     try {
       // import existing data into formdef
@@ -278,46 +386,23 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
       }
     }
 
+    recordStageTiming(STAGE_INSTANCE, instanceStart);
+
     // Remove previous forms
     ReferenceManager._().clearSession();
 
-    // for itemsets.csv, we only check to see if the itemset file has been
-    // updated
-    File csv = new File(formMediaDir.getAbsolutePath() + "/" + ITEMSETS_CSV);
-    String csvmd5 = null;
-    if (csv.exists()) {
-      csvmd5 = FileUtils.getMd5Hash(csv);
-      boolean readFile = false;
-      ItemsetDbAdapter ida = new ItemsetDbAdapter();
-      ida.open();
-      // get the database entry (if exists) for this itemsets.csv, based
-      // on the path
-      Cursor c = ida.getItemsets(csv.getAbsolutePath());
-      if (c != null) {
-        if (c.getCount() == 1) {
-          c.moveToFirst(); // should be only one, ever, if any
-          String oldmd5 = c.getString(c.getColumnIndex("hash"));
-          if (oldmd5.equals(csvmd5)) {
-            // they're equal, do nothing
-          } else {
-            // the csv has been updated, delete the old entries
-            ida.dropTable(ItemsetDbAdapter.getMd5FromString(csv.getAbsolutePath()),
-                csv.getAbsolutePath());
-            // and read the new
-            readFile = true;
-          }
-        } else {
-          // new csv, add it
-          readFile = true;
-        }
-        c.close();
-      }
-      ida.close();
-      if (readFile) {
-        readCSV(csv, csvmd5, ItemsetDbAdapter.getMd5FromString(csv.getAbsolutePath()));
-      }
+    if (!awaitStage(itemsetsImport)) {
+      return null;
     }
 
+    long indexStart = System.currentTimeMillis();
+    mItemsetIndexes = indexItemsets(formMediaDir, ItemsetQuery.findAll(fd));
+    recordStageTiming(STAGE_ITEMSET_INDEXES, indexStart);
+    if (!mItemsetIndexes.isEmpty()) {
+      Log.i(t, "Itemset indexes: " + mItemsetIndexes);
+    }
+    Log.i(t, "Form load stage timings: " + getStageTimings());
+
     // This should get moved to the Application Class
     if (ReferenceManager._().getFactories().length == 0) {
       // this is /sdcard/odk
@@ -358,58 +443,510 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
 
   }
 
-  @SuppressWarnings("unchecked")
-  private void loadExternalData(File mediaFolder) {
-    // SCTO-594
-    File[] zipFiles = mediaFolder.listFiles(new FileFilter() {
+  /**
+   * Imports the itemsets.csv of the form into the itemsets database, unless
+   * it has been imported already and did not change since.
+   *
+   * @param formMediaDir
+   *          the media folder of the form
+   */
+  public static void importItemsets(File formMediaDir) {
+    importItemsets(formMediaDir, null);
+  }
+
+  /**
+   * Like {@link #importItemsets(File)}, but stops within a batch of rows once
+   * the monitor is cancelled. The rows imported so far are rolled back and
+   * the import lock is released, so a form loader waiting on it can go on.
+   *
+   * @param importMonitor
+   *          tells the import when to stop, may be null
+   */
+  public static void importItemsets(File formMediaDir, ExternalDataImportMonitor importMonitor) {
+    synchronized (ITEMSETS_IMPORT_LOCK) {
+      importItemsetsLocked(formMediaDir, importMonitor);
+    }
+  }
+
+  /**
+   * Indexes the itemsets table of the form on the columns its itemset
+   * questions filter on.
+   *
+   * @param formMediaDir
+   *          the media folder of the form
+   * @param queries
+   *          the itemset queries of the form
+   * @return the indexes of the itemsets table
+   */
+  public static List<String> indexItemsets(File formMediaDir, List<ItemsetQuery> queries) {
+    File csv = new File(formMediaDir.getAbsolutePath() + "/" + ITEMSETS_CSV);
+    if (queries.isEmpty() || !csv.exists()) {
+      return new ArrayList<String>();
+    }
+
+    List<List<String>> columnSets = new ArrayList<List<String>>();
+    for (ItemsetQuery query : queries) {
+      columnSets.add(query.getColumns());
+    }
+
+    synchronized (ITEMSETS_IMPORT_LOCK) {
+      ItemsetDbAdapter ida = new ItemsetDbAdapter();
+      try {
+        ida.open();
+        String tableHash = ida.getTableHash(csv.getAbsolutePath());
+        if (tableHash == null || !ida.tableExists(tableHash)) {
+          return new ArrayList<String>();
+        }
+        return ida.createIndexes(tableHash, columnSets);
+      } catch (SQLException e) {
+        Log.e(t, "Unable to index " + csv.getAbsolutePath(), e);
+        return new ArrayList<String>();
+      } finally {
+        ida.close();
+      }
+    }
+  }
+
+  private static boolean isImportCancelled(ExternalDataImportMonitor importMonitor) {
+    return importMonitor != null && importMonitor.isCancelled();
+  }
+
+  private static void recordImportTiming(ExternalDataImportMonitor importMonitor, String step,
+      long start) {
+    if (importMonitor != null) {
+      importMonitor.recordImportTiming(step, System.currentTimeMillis() - start);
+    }
+  }
+
+  private static void importItemsetsLocked(File formMediaDir,
+      ExternalDataImportMonitor importMonitor) {
+    // for itemsets.csv, we only check to see if the itemset file has been
+    // updated
+    File csv = new File(formMediaDir.getAbsolutePath() + "/" + ITEMSETS_CSV);
+    if (!csv.exists()) {
+      return;
+    }
+    String path = csv.getAbsolutePath();
+    long hashStart = System.currentTimeMillis();
+    String csvmd5 = FileUtils.getMd5Hash(csv);
+    recordImportTiming(importMonitor, STAGE_ITEMSETS_HASH, hashStart);
+    if (csvmd5 == null) {
+      return;
+    }
+
+    // itemset tables are named after the md5 of the csv, so every form
+    // shipping the same itemsets.csv uses the same table
+    ItemsetDbAdapter ida = new ItemsetDbAdapter();
+    ida.open();
+    try {
+      String oldmd5 = ida.getTableHash(path);
+      if (csvmd5.equals(oldmd5)) {
+        // they're equal, do nothing
+        return;
+      }
+
+      ItemsetResultCache.removeTable(ItemsetDbAdapter.getMd5FromString(path));
+      if (oldmd5 != null) {
+        // the csv has been updated. If no other form uses the old table,
+        // apply the changes to it rather than importing everything again
+        if (!ida.isReferenced(csvmd5) && ida.getReferenceCount(oldmd5) == 1
+            && ida.tableExists(oldmd5)) {
+          long updateStart = System.currentTimeMillis();
+          boolean updated = updateCSV(csv, oldmd5, csvmd5, ida, importMonitor);
+          recordImportTiming(importMonitor, STAGE_ITEMSETS_UPDATE, updateStart);
+          if (updated) {
+            return;
+          }
+        }
+        if (isImportCancelled(importMonitor)) {
+          // keep the old table, the update is retried next time
+          return;
+        }
+        // otherwise let go of the old table
+        ida.release(path);
+      }
+
+      if (ida.isReferenced(csvmd5)) {
+        Log.i(t, "Using the already imported copy of " + path);
+      } else {
+        long importStart = System.currentTimeMillis();
+        boolean imported = readCSV(csv, csvmd5, ida, importMonitor);
+        recordImportTiming(importMonitor, STAGE_ITEMSETS_IMPORT, importStart);
+        if (!imported) {
+          return;
+        }
+      }
+      ida.addReference(csvmd5, path);
+    } finally {
+      ida.close();
+    }
+  }
+
+
+  /**
+   * Imports the external data csv files of the form, those in its media
+   * folder and those in zip files there. Shared by the form loader and the
+   * {@link FormPrecompiler}, only one of them imports at a time.
+   *
+   * @param mediaFolder
+   *          the media folder of the form
+   * @param importMonitor
+   *          receives the progress and tells when to stop the import
+   */
+  public static void loadExternalData(File mediaFolder,
+      ExternalDataImportMonitor importMonitor) {
+    loadExternalData(mediaFolder, importMonitor, null);
+  }
+
+  /**
+   * @param mediaExtracted
+   *          counted down once the zip files in the media folder have been
+   *          extracted, before the csv files are imported; may be null
+   * @see #loadExternalData(File, ExternalDataImportMonitor)
+   */
+  public static void loadExternalData(File mediaFolder,
+      ExternalDataImportMonitor importMonitor, CountDownLatch mediaExtracted) {
+    try {
+      synchronized (EXTERNAL_DATA_IMPORT_LOCK) {
+        loadExternalDataLocked(mediaFolder, importMonitor, mediaExtracted);
+      }
+    } finally {
+      if (mediaExtracted != null) {
+        mediaExtracted.countDown();
+      }
+    }
+  }
+
+  /**
+   * Indexes the external datasets of the form on the columns its pulldata()
+   * calls and search() appearances look rows up by. The form xml is only
+   * scanned if the form has datasets, and only once per form version.
+   *
+   * @param mediaFolder
+   *          the media folder of the form
+   * @param formXml
+   *          the form definition file
+   * @return the indexes created, as "dataset.column"
+   */
+  public static List<String> indexExternalData(File mediaFolder, File formXml) {
+    List<String> indexes = new ArrayList<String>();
+    File[] dbFiles = mediaFolder.listFiles(new FileFilter() {
       @Override
       public boolean accept(File file) {
-        return file.getName().toLowerCase().endsWith(".zip");
+        return file.getName().endsWith(".db");
       }
     });
+    if (dbFiles == null || dbFiles.length == 0) {
+      return indexes;
+    }
 
-    if (zipFiles != null) {
-      ZipUtils.unzip(zipFiles);
-      for (File zipFile : zipFiles) {
-        boolean deleted = zipFile.delete();
-        if (!deleted) {
-          Log.w(t, "Cannot delete " + zipFile + ". It will be re-unzipped next time. :(");
+    Map<String, List<String>> columnsByDataSet = new LinkedHashMap<String, List<String>>();
+    for (ExternalDataLookup lookup : getExternalDataLookups(formXml)) {
+      List<String> columns = columnsByDataSet.get(lookup.getDataSetName());
+      if (columns == null) {
+        columns = new ArrayList<String>();
+        columnsByDataSet.put(lookup.getDataSetName(), columns);
+      }
+      columns.add(lookup.getColumnName());
+    }
+
+    synchronized (EXTERNAL_DATA_IMPORT_LOCK) {
+      for (Map.Entry<String, List<String>> entry : columnsByDataSet.entrySet()) {
+        File dbFile = new File(mediaFolder, entry.getKey() + ".db");
+        if (!dbFile.exists()) {
+          continue;
+        }
+        for (String column : ExternalSQLiteOpenHelper.createIndexes(dbFile, entry.getValue())) {
+          indexes.add(entry.getKey() + "." + column);
         }
       }
     }
+    return indexes;
+  }
 
-    File[] csvFiles = mediaFolder.listFiles(new FileFilter() {
+  /**
+   * @return the external data lookups of the form, from the formdef cache
+   *         index if the form was scanned before
+   */
+  private static List<ExternalDataLookup> getExternalDataLookups(File formXml) {
+    FormDefCacheDbAdapter fcda = new FormDefCacheDbAdapter();
+    try {
+      fcda.open();
+      // the form loader may still be hashing the form, only the index is asked
+      String md5 = fcda.peekCachedMd5(formXml);
+      String stored = (md5 == null) ? null : fcda.getExternalDataLookups(md5);
+      if (stored != null) {
+        List<ExternalDataLookup> lookups = new ArrayList<ExternalDataLookup>();
+        for (String lookup : stored.split("\n")) {
+          if (lookup.length() > 0) {
+            lookups.add(ExternalDataLookup.fromString(lookup));
+          }
+        }
+        return lookups;
+      }
+
+      List<ExternalDataLookup> lookups = ExternalDataLookup.findAll(formXml);
+      if (lookups == null) {
+        return new ArrayList<ExternalDataLookup>();
+      }
+      if (md5 != null) {
+        StringBuilder sb = new StringBuilder();
+        for (ExternalDataLookup lookup : lookups) {
+          sb.append(lookup).append('\n');
+        }
+        fcda.setExternalDataLookups(md5, sb.toString());
+      }
+      return lookups;
+    } catch (SQLException e) {
+      Log.e(t, "Unable to use the formdef cache index", e);
+      List<ExternalDataLookup> lookups = ExternalDataLookup.findAll(formXml);
+      return (lookups == null) ? new ArrayList<ExternalDataLookup>() : lookups;
+    } finally {
+      fcda.close();
+    }
+  }
+
+  /**
+   * @param mediaFolder
+   *          the media folder of a form
+   * @param fcda
+   *          an open formdef cache index, in which the state of the folder is
+   *          recorded once nothing is pending; may be null
+   * @return true if the folder holds zip or external data csv files that may
+   *         have changed since {@link #loadExternalData} imported them. As
+   *         long as the names, sizes and modification times of those files
+   *         match the state recorded in the index, no dataset database or zip
+   *         file is opened.
+   */
+  public static boolean hasPendingExternalData(final File mediaFolder,
+      FormDefCacheDbAdapter fcda) {
+    File[] dataFiles = mediaFolder.listFiles(new FileFilter() {
       @Override
       public boolean accept(File file) {
-        String lowerCaseName = file.getName().toLowerCase();
-        return lowerCaseName.endsWith(".csv") && !lowerCaseName.equalsIgnoreCase(ITEMSETS_CSV);
+        return file.getName().toLowerCase().endsWith(".zip")
+            || ExternalDataUtil.getDataSetName(file.getName()) != null;
       }
     });
+    if (dataFiles == null || dataFiles.length == 0) {
+      return false;
+    }
+
+    String path = mediaFolder.getAbsolutePath();
+    long state = getMediaState(dataFiles);
+    if (fcda != null && fcda.getMediaState(path) == state) {
+      return false;
+    }
+
+    for (File file : dataFiles) {
+      if (file.getName().toLowerCase().endsWith(".zip")) {
+        try {
+          List<String> dataSetNames = getDataSetNames(file);
+          if (dataSetNames.isEmpty() || !isImportedFrom(mediaFolder, file, dataSetNames)) {
+            return true;
+          }
+        } catch (IOException e) {
+          return true;
+        }
+      } else if (!isImportedFrom(mediaFolder, file,
+          Collections.singletonList(ExternalDataUtil.getDataSetName(file.getName())))) {
+        return true;
+      }
+    }
+    if (fcda != null) {
+      fcda.setMediaState(path, state);
+    }
+    return false;
+  }
 
+  /**
+   * @return crc32 of the names, sizes and modification times of the files
+   */
+  private static long getMediaState(File[] files) {
+    File[] sorted = files.clone();
+    Arrays.sort(sorted);
+    CRC32 crc = new CRC32();
+    for (File file : sorted) {
+      crc.update((file.getName() + "\0" + file.length() + "\0" + file.lastModified() + "\0")
+          .getBytes());
+    }
+    return crc.getValue();
+  }
+
+  private static void loadExternalDataLocked(File mediaFolder,
+      ExternalDataImportMonitor importMonitor, CountDownLatch mediaExtracted) {
     Map<String, File> externalDataMap = new HashMap<String, File>();
 
-    if (csvFiles != null) {
+    File[] csvFiles = mediaFolder.listFiles(new FileFilter() {
+      @Override
+      public boolean accept(File file) {
+        return ExternalDataUtil.getDataSetName(file.getName()) != null;
+      }
+    });
 
+    if (csvFiles != null) {
       for (File csvFile : csvFiles) {
-        String dataSetName = csvFile.getName().substring(0, csvFile.getName().lastIndexOf("."));
-        externalDataMap.put(dataSetName, csvFile);
+        externalDataMap.put(ExternalDataUtil.getDataSetName(csvFile.getName()), csvFile);
+      }
+    }
+
+    // SCTO-594
+    File[] zipFiles = mediaFolder.listFiles(new FileFilter() {
+      @Override
+      public boolean accept(File file) {
+        return file.getName().toLowerCase().endsWith(".zip");
       }
+    });
 
-      if (externalDataMap.size() > 0) {
+    if (zipFiles != null) {
+      long extractStart = System.currentTimeMillis();
+      for (File zipFile : zipFiles) {
+        loadZipFile(mediaFolder, zipFile, externalDataMap);
+      }
+      recordImportTiming(importMonitor, STAGE_EXTERNAL_DATA_EXTRACT, extractStart);
+    }
+    if (mediaExtracted != null) {
+      mediaExtracted.countDown();
+    }
 
-        publishProgress(Collect.getInstance()
-            .getString(R.string.survey_loading_reading_csv_message));
+    if (externalDataMap.size() > 0) {
 
-        ExternalDataReader externalDataReader = new ExternalDataReaderImpl(this);
-        externalDataReader.doImport(externalDataMap);
+      importMonitor.publishExternalDataLoadingProgress(Collect.getInstance()
+          .getString(R.string.survey_loading_reading_csv_message));
+
+      ExternalDataReader externalDataReader = new ExternalDataReaderImpl(importMonitor);
+      externalDataReader.doImport(externalDataMap);
+    }
+  }
+
+  /**
+   * The external data csv files in a zip file are imported straight out of
+   * it, and the zip file is kept to detect changes with. Its other files are
+   * only extracted when the zip file is new or has changed. A zip file without
+   * external data is extracted and deleted.
+   */
+  private static void loadZipFile(File mediaFolder, File zipFile,
+      Map<String, File> externalDataMap) {
+    List<String> dataSetNames;
+    try {
+      dataSetNames = getDataSetNames(zipFile);
+    } catch (IOException e) {
+      Log.e(t, "Cannot read " + zipFile, e);
+      return;
+    }
+
+    if (dataSetNames.isEmpty()) {
+      ZipUtils.unzip(new File[] { zipFile });
+      boolean deleted = zipFile.delete();
+      if (!deleted) {
+        Log.w(t, "Cannot delete " + zipFile + ". It will be re-unzipped next time. :(");
       }
+      return;
+    }
+
+    if (!isImportedFrom(mediaFolder, zipFile, dataSetNames)) {
+      ZipUtils.unzip(zipFile, new FilenameFilter() {
+        @Override
+        public boolean accept(File dir, String filename) {
+          return ExternalDataUtil.getDataSetName(filename) == null;
+        }
+      });
+    }
+    for (String dataSetName : dataSetNames) {
+      externalDataMap.put(dataSetName, zipFile);
+    }
+  }
+
+  /**
+   * @return the names of the datasets whose csv files are in the zip file
+   */
+  private static List<String> getDataSetNames(File zipFile) throws IOException {
+    List<String> dataSetNames = new ArrayList<String>();
+    for (String fileName : ZipUtils.getFileNames(zipFile)) {
+      String dataSetName = ExternalDataUtil.getDataSetName(fileName);
+      if (dataSetName != null) {
+        dataSetNames.add(dataSetName);
+      }
+    }
+    return dataSetNames;
+  }
+
+  /**
+   * @return true if the manifest of every dataset shows it was imported from
+   *         the file, with the size and modification time it has now
+   */
+  private static boolean isImportedFrom(File mediaFolder, File file, List<String> dataSetNames) {
+    for (String dataSetName : dataSetNames) {
+      ExternalDataManifest manifest = ExternalDataManifest.read(new File(mediaFolder, dataSetName
+          + ".db"));
+      if (manifest == null || !manifest.isUnchanged(file)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Waits for a stage running on the load executor.
+   *
+   * @return false if the stage failed, in which case the error message is set
+   */
+  private boolean awaitStage(Future<?> stage) {
+    try {
+      stage.get();
+      return true;
+    } catch (ExecutionException e) {
+      Throwable cause = (e.getCause() != null) ? e.getCause() : e;
+      Log.e(t, cause.getMessage(), cause);
+      mErrorMsg = cause.getMessage();
+      return false;
+    } catch (InterruptedException e) {
+      Log.e(t, "Interrupted while loading the form", e);
+      mErrorMsg = e.getMessage();
+      return false;
+    }
+  }
+
+  private void recordStageTiming(String stage, long start) {
+    synchronized (mStageTimings) {
+      mStageTimings.put(stage, System.currentTimeMillis() - start);
+    }
+  }
+
+  /**
+   * @return the indexes of the itemsets table, as "column, column, ..."
+   */
+  public List<String> getItemsetIndexes() {
+    return mItemsetIndexes;
+  }
+
+  /**
+   * @return md5 of the form file that was loaded
+   */
+  public String getFormHash() {
+    return mFormHash;
+  }
+
+  /**
+   * @return the time in milliseconds taken by each stage of the last load
+   */
+  public Map<String, Long> getStageTimings() {
+    synchronized (mStageTimings) {
+      return new LinkedHashMap<String, Long>(mStageTimings);
     }
   }
 
+  @Override
   public void publishExternalDataLoadingProgress(String message) {
     publishProgress(message);
   }
 
+  @Override
+  public void recordImportTiming(String step, long millis) {
+    synchronized (mStageTimings) {
+      mStageTimings.put(step, millis);
+    }
+  }
+
   @Override
   protected void onProgressUpdate(String... values) {
     synchronized (this) {
@@ -424,11 +961,22 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
   public boolean importData(File instanceFile, FormEntryController fec) {
     publishProgress(Collect.getInstance().getString(R.string.survey_loading_reading_data_message));
 
-    // convert files into a byte array
-    byte[] fileBytes = FileUtils.getFileAsBytes(instanceFile);
+    // stream the saved instance straight into a tree, the file is never held
+    // in memory as a whole
+    long start = System.currentTimeMillis();
+    TreeElement savedRoot;
+    try {
+      savedRoot = SavedInstanceParser.parse(instanceFile);
+    } catch (IOException e) {
+      throw new RuntimeException("Unable to read " + instanceFile.getName(), e);
+    } catch (XmlPullParserException e) {
+      throw new RuntimeException("Unable to parse " + instanceFile.getName(), e);
+    }
+    Log.i(t, "Parsed " + instanceFile.getName() + " in "
+        + (System.currentTimeMillis() - start) + "ms");
 
-    // get the root of the saved and template instances
-    TreeElement savedRoot = XFormParser.restoreDataModel(fileBytes, null).getRoot();
+    // get the root of the template instance; it only holds repeat templates
+    // and defaults, so copying it is cheap compared to the saved instance
     TreeElement templateRoot = fec.getModel().getForm().getInstance().getRoot().deepCopy(true);
 
     // weak check for matching forms
@@ -470,62 +1018,59 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
    * @return {@link FormDef} object
    */
   public FormDef deserializeFormDef(File formDef) {
+    return FormDefCacheFile.read(formDef);
+  }
 
-    // TODO: any way to remove reliance on jrsp?
-    FileInputStream fis = null;
-    FormDef fd = null;
+  /**
+   * Returns the md5 of the form file. The md5 is taken from the
+   * {@link FormDefCacheDbAdapter} index when the size and last modified time
+   * of the file are unchanged, so the form is only hashed when it changed.
+   *
+   * @param formXml
+   *          the form file
+   * @return md5 of the form file
+   */
+  private String getFormHash(File formXml) {
+    FormDefCacheDbAdapter fcda = new FormDefCacheDbAdapter();
     try {
-      // create new form def
-      fd = new FormDef();
-      fis = new FileInputStream(formDef);
-      DataInputStream dis = new DataInputStream(fis);
-
-      // read serialized formdef into new formdef
-      fd.readExternal(dis, ExtUtil.defaultPrototypes());
-      dis.close();
-
-    } catch (FileNotFoundException e) {
-      e.printStackTrace();
-      fd = null;
-    } catch (IOException e) {
-      e.printStackTrace();
-      fd = null;
-    } catch (DeserializationException e) {
-      e.printStackTrace();
-      fd = null;
-    } catch (Exception e) {
-      e.printStackTrace();
-      fd = null;
+      fcda.open();
+      String hash = fcda.getMd5Hash(formXml);
+      // lets the cache manager evict least recently used forms first
+      if (hash != null) {
+        fcda.recordAccess(hash);
+      }
+      Log.i(t, "formdef cache index hits: " + FormDefCacheDbAdapter.getFastPathHits()
+          + ", misses: " + FormDefCacheDbAdapter.getFastPathMisses());
+      return hash;
+    } catch (SQLException e) {
+      // the index is only an optimization, fall back to hashing the file
+      Log.e(t, "Unable to use the formdef cache index", e);
+      return FileUtils.getMd5Hash(formXml);
+    } finally {
+      fcda.close();
     }
-
-    return fd;
   }
 
   /**
    * Write the FormDef to the file system as a binary blog.
    *
-   * @param filepath
-   *          path to the form file
+   * @param hash
+   *          md5 of the form file
    */
-  public void serializeFormDef(FormDef fd, String filepath) {
-    // calculate unique md5 identifier
-    String hash = FileUtils.getMd5Hash(new File(filepath));
-    File formDef = new File(Collect.CACHE_PATH + File.separator + hash + ".formdef");
-
-    // formdef does not exist, create one.
-    if (!formDef.exists()) {
-      FileOutputStream fos;
-      try {
-        fos = new FileOutputStream(formDef);
-        DataOutputStream dos = new DataOutputStream(fos);
-        fd.writeExternal(dos);
-        dos.flush();
-        dos.close();
-      } catch (FileNotFoundException e) {
-        e.printStackTrace();
-      } catch (IOException e) {
-        e.printStackTrace();
+  public void serializeFormDef(FormDef fd, String hash) {
+    File formDef = new File(FormDefCacheDbAdapter.getFormDefPath(hash));
+
+    try {
+      byte[] payload = FormDefCacheFile.serialize(fd);
+      // the form has not been initialized yet, so this is a pristine copy
+      FormDefMemoryCache.put(hash, payload);
+
+      // formdef does not exist, create one.
+      if (!formDef.exists()) {
+        FormDefCacheFile.write(payload, formDef);
       }
+    } catch (IOException e) {
+      Log.e(t, "Unable to serialize " + formDef.getName(), e);
     }
   }
 
@@ -603,46 +1148,125 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
     this.intent = intent;
   }
 
-  private void readCSV(File csv, String formHash, String pathHash) {
+  /**
+   * Updates the table of the previous version of an itemsets.csv to the
+   * current one.
+   *
+   * @return true if the table was updated, false if the csv has to be
+   *         imported in full
+   */
+  private static boolean updateCSV(File csv, String oldHash, String newHash,
+      ItemsetDbAdapter ida, ExternalDataImportMonitor importMonitor) {
+    CSVReader reader = null;
+    ItemsetDbAdapter.DeltaLoader loader = null;
+    try {
+      reader = new CSVReader(new FileReader(csv));
 
-        CSVReader reader;
-        ItemsetDbAdapter ida = new ItemsetDbAdapter();
-        ida.open();
-        boolean withinTransaction = false;
+      // a change to the columns means a new table
+      String[] columnHeaders = reader.readNext();
+      if (columnHeaders == null
+          || !Arrays.asList(columnHeaders).equals(ida.getColumns(oldHash))) {
+        return false;
+      }
+
+      loader = ida.beginDeltaLoad(oldHash, newHash);
+      String[] nextLine;
+      int rows = 0;
+      while ((nextLine = reader.readNext()) != null) {
+        loader.matchRow(nextLine);
+        if (++rows % ITEMSETS_CANCEL_CHECK_ROWS == 0 && isImportCancelled(importMonitor)) {
+          return false;
+        }
+      }
+      reader.close();
+
+      // the second pass only writes the rows that changed
+      reader = new CSVReader(new FileReader(csv));
+      reader.readNext();
+      loader.beginUpdate();
+      while ((nextLine = reader.readNext()) != null) {
+        if (!loader.updateRow(nextLine)) {
+          Log.i(t, "No room left to update " + csv.getAbsolutePath() + " in place");
+          return false;
+        }
+        if (++rows % ITEMSETS_CANCEL_CHECK_ROWS == 0 && isImportCancelled(importMonitor)) {
+          return false;
+        }
+      }
+      loader.finish(csv.getAbsolutePath());
+      loader = null;
+      return true;
+    } catch (IOException e) {
+      Log.e(t, "Unable to update " + csv.getAbsolutePath(), e);
+      return false;
+    } catch (SQLException e) {
+      Log.e(t, "Unable to update " + csv.getAbsolutePath(), e);
+      return false;
+    } finally {
+      if (loader != null) {
+        loader.abort();
+      }
+      IOUtils.closeQuietly(reader);
+    }
+  }
+
+  /**
+   * Imports the csv into a new table named after its hash. If the csv cannot
+   * be read to the end, the table is dropped again, so it is never referenced
+   * with only part of the rows.
+   *
+   * @return true if every row of the csv was imported
+   */
+  private static boolean readCSV(final File csv, String tableHash, ItemsetDbAdapter ida,
+      ExternalDataImportMonitor importMonitor) {
+
+        CSVReader reader = null;
+        ItemsetDbAdapter.BulkLoader loader = null;
+        boolean tableCreated = false;
+        boolean complete = false;
 
         try {
             reader = new CSVReader(new FileReader(csv));
 
+            // first line of csv is column headers
+            String[] columnHeaders = reader.readNext();
+            if (columnHeaders == null) {
+                return false;
+            }
+            ida.createTable(tableHash, columnHeaders);
+            tableCreated = true;
+
+            loader = ida.beginBulkLoad(tableHash, columnHeaders,
+                    new ItemsetDbAdapter.BulkLoadListener() {
+                        @Override
+                        public void onRowsLoaded(int rows, long rowsPerSecond) {
+                            Log.i(t, csv.getName() + ": " + rows + " rows ("
+                                    + rowsPerSecond + " rows/s)");
+                        }
+                    });
+            // add the rest of the lines to the specified database
             String[] nextLine;
-            String[] columnHeaders = null;
-            int lineNumber = 0;
             while ((nextLine = reader.readNext()) != null) {
-                lineNumber++;
-                if (lineNumber == 1) {
-                    // first line of csv is column headers
-                    columnHeaders = nextLine;
-                    ida.createTable(formHash, pathHash, columnHeaders,
-                            csv.getAbsolutePath());
-                    continue;
-                }
-                // add the rest of the lines to the specified database
-                // nextLine[] is an array of values from the line
-                // System.out.println(nextLine[4] + "etc...");
-                if (lineNumber == 2) {
-                    // start a transaction for the inserts
-                    withinTransaction = true;
-                    ida.beginTransaction();
+                if (loader.addRow(nextLine) && isImportCancelled(importMonitor)) {
+                    Log.i(t, "Import of " + csv.getAbsolutePath() + " cancelled");
+                    return false;
                 }
-                ida.addRow(pathHash, columnHeaders, nextLine);
-
             }
+            ItemsetDbAdapter.BulkLoader finished = loader;
+            loader = null;
+            finished.finish();
+            complete = true;
         } catch (IOException e) {
-            e.printStackTrace();
+            Log.e(t, "Unable to read " + csv.getAbsolutePath(), e);
         } finally {
-            if ( withinTransaction ) {
-                ida.commit();
+            if (loader != null) {
+                loader.abort();
+            }
+            IOUtils.closeQuietly(reader);
+            if (tableCreated && !complete) {
+                ida.dropTable(tableHash);
             }
-            ida.close();
         }
+        return complete;
     }
 }
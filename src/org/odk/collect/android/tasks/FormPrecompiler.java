@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.tasks;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.LinkedList;
+
+import org.apache.commons.io.IOUtils;
+import org.javarosa.core.model.FormDef;
+import org.javarosa.xform.util.XFormUtils;
+import org.odk.collect.android.database.FormDefCacheDbAdapter;
+import org.odk.collect.android.external.ExternalDataImportMonitor;
+import org.odk.collect.android.utilities.FileUtils;
+import org.odk.collect.android.utilities.FormDefCacheFile;
+
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Prepares newly downloaded or discovered forms in the background, so that
+ * their first open follows the same path as any later one: the form is parsed
+ * and its .formdef written to the cache, and its itemsets.csv and external
+ * data csv files are imported.
+ *
+ * Forms are processed one at a time on a single low priority thread. The work
+ * is suspended while a form is being filled in, and the import that is running
+ * at that moment is cancelled, so the precompiler never competes with the form
+ * session. An external data import that was cancelled resumes from its last
+ * committed batch the next time the form is precompiled or opened; a
+ * cancelled itemsets import is rolled back and its form stays queued.
+ */
+public final class FormPrecompiler {
+    private final static String t = "FormPrecompiler";
+
+    private static final Object sLock = new Object();
+    private static final LinkedList<String> sQueue = new LinkedList<String>();
+    private static Thread sWorker = null;
+    private static boolean sFormSessionActive = false;
+    private static volatile boolean sCancelled = false;
+
+    private FormPrecompiler() {
+    }
+
+    /**
+     * Queue a form to be precompiled.
+     *
+     * @param formXml the form definition file
+     */
+    public static void enqueue(File formXml) {
+        synchronized (sLock) {
+            String path = formXml.getAbsolutePath();
+            if (!sQueue.contains(path)) {
+                sQueue.add(path);
+            }
+            sCancelled = false;
+            if (sWorker == null) {
+                sWorker = new Thread(new Worker(), t);
+                sWorker.start();
+            } else {
+                sLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Drop every queued form and stop the one currently being processed.
+     */
+    public static void cancel() {
+        synchronized (sLock) {
+            sQueue.clear();
+            sCancelled = true;
+            sLock.notifyAll();
+        }
+    }
+
+    /**
+     * Called by the form entry screen when it is created and when it finishes,
+     * not when it merely goes to the background. While a session is active no
+     * form is precompiled.
+     */
+    public static void setFormSessionActive(boolean active) {
+        synchronized (sLock) {
+            sFormSessionActive = active;
+            sLock.notifyAll();
+        }
+    }
+
+    private static boolean isInterrupted() {
+        synchronized (sLock) {
+            return sCancelled || sFormSessionActive;
+        }
+    }
+
+    private static class Worker implements Runnable, ExternalDataImportMonitor {
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            while (true) {
+                String path;
+                synchronized (sLock) {
+                    while (sFormSessionActive && !sQueue.isEmpty()) {
+                        try {
+                            sLock.wait();
+                        } catch (InterruptedException e) {
+                            // check the state again
+                        }
+                    }
+                    if (sQueue.isEmpty()) {
+                        sWorker = null;
+                        return;
+                    }
+                    path = sQueue.peek();
+                }
+
+                boolean completed = false;
+                try {
+                    completed = precompile(new File(path));
+                } catch (RuntimeException e) {
+                    Log.e(t, "Unable to precompile " + path, e);
+                    completed = true;
+                }
+
+                synchronized (sLock) {
+                    // an interrupted form stays queued, unless it was cancelled
+                    if (completed || sCancelled) {
+                        sQueue.remove(path);
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return false if the work was interrupted and should be retried
+         */
+        private boolean precompile(File formXml) {
+            if (!formXml.exists()) {
+                return true;
+            }
+            long start = System.currentTimeMillis();
+
+            FormDefCacheDbAdapter fcda = new FormDefCacheDbAdapter();
+            String formHash;
+            try {
+                fcda.open();
+                formHash = fcda.getMd5Hash(formXml);
+                if (formHash != null) {
+                    fcda.recordAccess(formHash);
+                }
+            } finally {
+                fcda.close();
+            }
+            if (formHash == null) {
+                // the form loader will report the error when the form is opened
+                Log.e(t, "Unable to read " + formXml.getAbsolutePath());
+                return true;
+            }
+
+            File formBin = new File(FormDefCacheDbAdapter.getFormDefPath(formHash));
+            if (!formBin.exists()) {
+                FileInputStream fis = null;
+                try {
+                    fis = new FileInputStream(formXml);
+                    FormDef fd = XFormUtils.getFormFromInputStream(fis);
+                    if (fd != null) {
+                        FormDefCacheFile.write(fd, formBin);
+                    }
+                } catch (Exception e) {
+                    // the form loader will report the error when the form is opened
+                    Log.e(t, "Unable to parse " + formXml.getAbsolutePath(), e);
+                    return true;
+                } finally {
+                    IOUtils.closeQuietly(fis);
+                }
+            }
+
+            if (isCancelled()) {
+                return false;
+            }
+
+            File formMediaDir = new File(FileUtils.constructMediaPath(formXml.getAbsolutePath()));
+            if (formMediaDir.isDirectory()) {
+                // extracts the media zip files the itemsets.csv may come from
+                FormLoaderTask.loadExternalData(formMediaDir, this);
+                if (isCancelled()) {
+                    return false;
+                }
+                FormLoaderTask.importItemsets(formMediaDir, this);
+                if (isCancelled()) {
+                    return false;
+                }
+            }
+
+            Log.i(t, "Precompiled " + formXml.getName() + " in "
+                    + (System.currentTimeMillis() - start) + "ms");
+            return true;
+        }
+
+        @Override
+        public void publishExternalDataLoadingProgress(String message) {
+            Log.i(t, message);
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return isInterrupted();
+        }
+
+        @Override
+        public void recordImportTiming(String step, long millis) {
+            Log.i(t, step + ": " + millis + "ms");
+        }
+    }
+}
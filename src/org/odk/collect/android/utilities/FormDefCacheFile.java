@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.utilities;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+
+import org.apache.commons.io.IOUtils;
+import org.javarosa.core.model.FormDef;
+import org.javarosa.core.util.externalizable.DeserializationException;
+import org.javarosa.core.util.externalizable.ExtUtil;
+import org.odk.collect.android.application.Collect;
+import org.odk.collect.android.logic.FormController;
+
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.util.Log;
+
+/**
+ * Reads and writes the .formdef files kept in {@link Collect#CACHE_PATH}.
+ *
+ * A file starts with a fixed size header (magic, format version, fingerprint
+ * of the serialization prototypes, payload length and crc32 of the payload)
+ * followed by the serialized {@link FormDef}. A file written by another format
+ * version, another set of prototypes or another build of the app is rejected
+ * from the header alone, before anything is deserialized.
+ */
+public final class FormDefCacheFile {
+
+    private final static String t = "FormDefCacheFile";
+
+    private static final int MAGIC = 0x4f444b46; // "ODKF"
+    private static final int FORMAT_VERSION = 1;
+    // magic + version + fingerprint + payload length + crc
+    private static final int HEADER_LENGTH = 4 + 4 + 8 + 4 + 8;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static long sFingerprint = 0;
+
+    private FormDefCacheFile() {
+    }
+
+    /**
+     * Read serialized {@link FormDef} from file and recreate as object.
+     *
+     * @param formDefFile serialized FormDef file
+     * @return {@link FormDef} object, or null if the file is missing, stale or
+     *         corrupt
+     */
+    public static FormDef read(File formDefFile) {
+        byte[] payload = readPayload(formDefFile);
+        return (payload == null) ? null : deserialize(payload);
+    }
+
+    /**
+     * Read the serialized {@link FormDef} from file, after checking the header
+     * and the checksum.
+     *
+     * @param formDefFile serialized FormDef file
+     * @return the serialized FormDef, or null if the file is missing, stale or
+     *         corrupt
+     */
+    public static byte[] readPayload(File formDefFile) {
+        long fileLength = formDefFile.length();
+        if (fileLength < HEADER_LENGTH) {
+            Log.w(t, "Rejecting " + formDefFile.getName() + ": too short for a header");
+            return null;
+        }
+
+        DataInputStream dis = null;
+        try {
+            dis = new DataInputStream(new BufferedInputStream(new FileInputStream(formDefFile),
+                    BUFFER_SIZE));
+
+            if (dis.readInt() != MAGIC) {
+                Log.w(t, "Rejecting " + formDefFile.getName() + ": unknown file format");
+                return null;
+            }
+            int version = dis.readInt();
+            if (version != FORMAT_VERSION) {
+                Log.w(t, "Rejecting " + formDefFile.getName() + ": format version " + version);
+                return null;
+            }
+            if (dis.readLong() != getFingerprint()) {
+                Log.w(t, "Rejecting " + formDefFile.getName() + ": written by another build");
+                return null;
+            }
+            int payloadLength = dis.readInt();
+            if (payloadLength != fileLength - HEADER_LENGTH) {
+                Log.w(t, "Rejecting " + formDefFile.getName() + ": truncated payload");
+                return null;
+            }
+            long expectedCrc = dis.readLong();
+
+            byte[] payload = new byte[payloadLength];
+            dis.readFully(payload);
+
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            if (crc.getValue() != expectedCrc) {
+                Log.w(t, "Rejecting " + formDefFile.getName() + ": checksum mismatch");
+                return null;
+            }
+            return payload;
+        } catch (IOException e) {
+            Log.e(t, "Unable to read " + formDefFile.getAbsolutePath(), e);
+            return null;
+        } finally {
+            IOUtils.closeQuietly(dis);
+        }
+    }
+
+    /**
+     * Recreate a {@link FormDef} from its serialized form. Every call returns a
+     * new, independent object.
+     *
+     * @param payload the serialized FormDef
+     * @return {@link FormDef} object, or null if it could not be deserialized
+     */
+    public static FormDef deserialize(byte[] payload) {
+        try {
+            FormDef fd = new FormDef();
+            fd.readExternal(new DataInputStream(new ByteArrayInputStream(payload)),
+                    ExtUtil.defaultPrototypes());
+            return fd;
+        } catch (IOException e) {
+            Log.e(t, "Unable to deserialize form", e);
+            return null;
+        } catch (DeserializationException e) {
+            Log.e(t, "Unable to deserialize form", e);
+            return null;
+        } catch (Exception e) {
+            Log.e(t, "Unable to deserialize form", e);
+            return null;
+        }
+    }
+
+    /**
+     * Serialize the FormDef into memory.
+     *
+     * @param fd the form to serialize
+     * @return the serialized FormDef
+     * @throws IOException if the form cannot be serialized
+     */
+    public static byte[] serialize(FormDef fd) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(BUFFER_SIZE);
+        DataOutputStream dos = new DataOutputStream(payload);
+        fd.writeExternal(dos);
+        dos.flush();
+        return payload.toByteArray();
+    }
+
+    /**
+     * Write the FormDef to the file system.
+     *
+     * @param fd the form to serialize
+     * @param formDefFile destination file
+     * @return true if the file was written
+     */
+    public static boolean write(FormDef fd, File formDefFile) {
+        try {
+            return write(serialize(fd), formDefFile);
+        } catch (IOException e) {
+            Log.e(t, "Unable to serialize form for " + formDefFile.getAbsolutePath(), e);
+            return false;
+        }
+    }
+
+    /**
+     * Write a serialized FormDef to the file system. The file is written under a
+     * temporary name and renamed into place, so a reader never sees a partially
+     * written file.
+     *
+     * @param payload the serialized FormDef
+     * @param formDefFile destination file
+     * @return true if the file was written
+     */
+    public static boolean write(byte[] payload, File formDefFile) {
+        // the form loader and the precompiler may write the same file at once
+        File tempFile = new File(formDefFile.getAbsolutePath() + "."
+                + Thread.currentThread().getId() + ".tmp");
+        DataOutputStream dos = null;
+        try {
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+
+            dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile),
+                    BUFFER_SIZE));
+            dos.writeInt(MAGIC);
+            dos.writeInt(FORMAT_VERSION);
+            dos.writeLong(getFingerprint());
+            dos.writeInt(payload.length);
+            dos.writeLong(crc.getValue());
+            dos.write(payload);
+            dos.close();
+            dos = null;
+
+            if (!tempFile.renameTo(formDefFile)) {
+                Log.e(t, "Unable to rename " + tempFile.getAbsolutePath());
+                FileUtils.deleteAndReport(tempFile);
+                return false;
+            }
+            return true;
+        } catch (IOException e) {
+            Log.e(t, "Unable to write " + formDefFile.getAbsolutePath(), e);
+            IOUtils.closeQuietly(dos);
+            FileUtils.deleteAndReport(tempFile);
+            return false;
+        }
+    }
+
+    /**
+     * The fingerprint combines the javarosa prototypes with the app version
+     * code, since a new build may bring a javarosa with different serialization.
+     */
+    private static synchronized long getFingerprint() {
+        if (sFingerprint == 0) {
+            int versionCode = 0;
+            try {
+                Collect collect = Collect.getInstance();
+                versionCode = collect.getPackageManager()
+                        .getPackageInfo(collect.getPackageName(), 0).versionCode;
+            } catch (NameNotFoundException e) {
+                Log.e(t, "Unable to get the version code", e);
+            }
+            sFingerprint = (((long) versionCode) << 32)
+                    ^ FormController.getPrototypesFingerprint();
+        }
+        return sFingerprint;
+    }
+}
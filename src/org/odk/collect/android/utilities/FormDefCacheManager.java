@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.utilities;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.odk.collect.android.application.Collect;
+import org.odk.collect.android.database.FormDefCacheDbAdapter;
+import org.odk.collect.android.provider.FormsProviderAPI.FormsColumns;
+
+import android.database.Cursor;
+import android.database.SQLException;
+import android.util.Log;
+
+/**
+ * Keeps {@link Collect#CACHE_PATH} from growing without bounds.
+ *
+ * A sweep removes:
+ * <ul>
+ * <li>.formdef files whose md5 no longer matches any form in the forms
+ * provider, which is what every form revision leaves behind;</li>
+ * <li>leftovers of interrupted downloads and cache writes (.tempDownload
+ * files, timestamped temporary media folders and .tmp files) once they are
+ * old enough that no task can still be using them;</li>
+ * <li>the least recently used .formdef files, until the remaining ones fit in
+ * the byte budget.</li>
+ * </ul>
+ */
+public final class FormDefCacheManager {
+
+    private final static String t = "FormDefCacheManager";
+
+    private static final String FORMDEF_EXTENSION = ".formdef";
+    private static final String TEMP_DOWNLOAD_EXTENSION = ".tempDownload";
+    private static final String TEMP_EXTENSION = ".tmp";
+
+    private static final long MAX_CACHE_BYTES = 50L * 1024L * 1024L;
+    // a temporary file this old belongs to a download or write that died
+    private static final long TEMP_FILE_MAX_AGE = 24L * 60L * 60L * 1000L;
+
+    private FormDefCacheManager() {
+    }
+
+    /**
+     * Sweep orphans and leftovers, then evict the least recently used .formdef
+     * files above the budget. Runs on the calling thread, so it must not be
+     * called from the UI thread.
+     */
+    public static synchronized void trim() {
+        File cacheDir = new File(Collect.CACHE_PATH);
+        File[] files = cacheDir.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        Set<String> knownHashes = getKnownFormHashes();
+        long now = System.currentTimeMillis();
+        List<File> formDefs = new ArrayList<File>();
+        int removed = 0;
+
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(FORMDEF_EXTENSION)) {
+                String md5 = name.substring(0, name.length() - FORMDEF_EXTENSION.length());
+                if (knownHashes != null && !knownHashes.contains(md5)) {
+                    Log.i(t, "Removing orphaned " + name);
+                    FileUtils.deleteAndReport(file);
+                    removed++;
+                } else {
+                    formDefs.add(file);
+                }
+            } else if (isTemporary(file) && now - file.lastModified() > TEMP_FILE_MAX_AGE) {
+                Log.i(t, "Removing stale temporary " + name);
+                if (file.isDirectory()) {
+                    FileUtils.purgeMediaPath(file.getAbsolutePath());
+                }
+                FileUtils.deleteAndReport(file);
+                removed++;
+            }
+        }
+
+        removed += evictLeastRecentlyUsed(formDefs);
+        Log.i(t, "Removed " + removed + " files from " + Collect.CACHE_PATH);
+    }
+
+    /**
+     * .tempDownload files and the timestamp named media folders come from
+     * DownloadFormsTask, .tmp files from {@link FormDefCacheFile}.
+     */
+    private static boolean isTemporary(File file) {
+        String name = file.getName();
+        if (file.isDirectory()) {
+            return name.matches("\\d+");
+        }
+        return name.endsWith(TEMP_DOWNLOAD_EXTENSION) || name.endsWith(TEMP_EXTENSION);
+    }
+
+    /**
+     * @return the md5 of every form in the forms provider, or null if the
+     *         provider could not be read, in which case nothing is an orphan
+     */
+    private static Set<String> getKnownFormHashes() {
+        String[] projection = {
+            FormsColumns.MD5_HASH
+        };
+        Cursor c = null;
+        try {
+            c = Collect.getInstance().getContentResolver()
+                    .query(FormsColumns.CONTENT_URI, projection, null, null, null);
+            if (c == null) {
+                return null;
+            }
+            Set<String> hashes = new HashSet<String>();
+            while (c.moveToNext()) {
+                hashes.add(c.getString(0));
+            }
+            return hashes;
+        } catch (SQLException e) {
+            Log.e(t, "Unable to read the forms provider", e);
+            return null;
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+    }
+
+    private static int evictLeastRecentlyUsed(List<File> formDefs) {
+        long totalBytes = 0;
+        for (File formDef : formDefs) {
+            totalBytes += formDef.length();
+        }
+        if (totalBytes <= MAX_CACHE_BYTES) {
+            return 0;
+        }
+
+        FormDefCacheDbAdapter fcda = new FormDefCacheDbAdapter();
+        int removed = 0;
+        try {
+            fcda.open();
+
+            final Map<File, Long> lastAccess = new HashMap<File, Long>();
+            for (File formDef : formDefs) {
+                long access = fcda.getLastAccess(getMd5(formDef));
+                // files never opened since the index existed count by their age
+                lastAccess.put(formDef, access != 0 ? access : formDef.lastModified());
+            }
+            Collections.sort(formDefs, new Comparator<File>() {
+                @Override
+                public int compare(File lhs, File rhs) {
+                    return lastAccess.get(lhs).compareTo(lastAccess.get(rhs));
+                }
+            });
+
+            for (File formDef : formDefs) {
+                if (totalBytes <= MAX_CACHE_BYTES) {
+                    break;
+                }
+                long length = formDef.length();
+                Log.i(t, "Evicting " + formDef.getName() + " (" + length + " bytes)");
+                if (formDef.delete()) {
+                    totalBytes -= length;
+                    fcda.deleteAccess(getMd5(formDef));
+                    fcda.deleteExternalDataLookups(getMd5(formDef));
+                    removed++;
+                }
+            }
+        } catch (SQLException e) {
+            Log.e(t, "Unable to use the formdef cache index", e);
+        } finally {
+            fcda.close();
+        }
+        return removed;
+    }
+
+    private static String getMd5(File formDef) {
+        String name = formDef.getName();
+        return name.substring(0, name.length() - FORMDEF_EXTENSION.length());
+    }
+}
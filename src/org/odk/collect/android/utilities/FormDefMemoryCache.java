@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.utilities;
+
+import org.javarosa.core.model.FormDef;
+
+import android.content.ComponentCallbacks2;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+/**
+ * In-process LRU of pristine forms, keyed by the md5 of the form file.
+ *
+ * The cache holds the serialized bytes of a FormDef as it was right after
+ * parsing, before any instance was loaded into it. Every {@link #get} returns
+ * a newly deserialized FormDef, so the form session can modify its copy freely
+ * and reopening a form never touches the disk. Holding bytes rather than
+ * objects also makes the memory used by the cache exact.
+ */
+public final class FormDefMemoryCache {
+
+    private final static String t = "FormDefMemoryCache";
+
+    // use at most 1/16th of the heap for cached forms
+    private static final int MAX_BYTES = (int) Math.min(Integer.MAX_VALUE,
+            Runtime.getRuntime().maxMemory() / 16);
+
+    private static final LruCache<String, byte[]> sCache = new LruCache<String, byte[]>(MAX_BYTES) {
+        @Override
+        protected int sizeOf(String key, byte[] value) {
+            return value.length;
+        }
+    };
+
+    private FormDefMemoryCache() {
+    }
+
+    /**
+     * @param formHash md5 of the form file
+     * @return a new copy of the cached form, or null if the form is not cached
+     */
+    public static FormDef get(String formHash) {
+        byte[] payload = sCache.get(formHash);
+        if (payload == null) {
+            return null;
+        }
+        FormDef fd = FormDefCacheFile.deserialize(payload);
+        if (fd == null) {
+            sCache.remove(formHash);
+        }
+        return fd;
+    }
+
+    /**
+     * @param formHash md5 of the form file
+     * @param payload the serialized, pristine form
+     */
+    public static void put(String formHash, byte[] payload) {
+        if (payload.length > MAX_BYTES) {
+            Log.i(t, "Form " + formHash + " is too large to keep in memory");
+            return;
+        }
+        sCache.put(formHash, payload);
+    }
+
+    public static void remove(String formHash) {
+        sCache.remove(formHash);
+    }
+
+    public static void clear() {
+        sCache.evictAll();
+    }
+
+    /**
+     * Release memory according to the level passed to
+     * {@link ComponentCallbacks2#onTrimMemory(int)}.
+     */
+    public static void trimMemory(int level) {
+        if (level == ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            // the user is likely to come back, keep the forms
+            return;
+        }
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            clear();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            sCache.trimToSize(sCache.maxSize() / 2);
+        }
+        Log.i(t, "Trimmed for level " + level + ": " + getStats());
+    }
+
+    public static int getHitCount() {
+        return sCache.hitCount();
+    }
+
+    public static int getMissCount() {
+        return sCache.missCount();
+    }
+
+    public static int getBytesHeld() {
+        return sCache.size();
+    }
+
+    public static String getStats() {
+        return "hits: " + getHitCount() + ", misses: " + getMissCount() + ", bytes held: "
+                + getBytesHeld() + "/" + MAX_BYTES;
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.utilities;
+
+import java.util.List;
+
+import android.content.ComponentCallbacks2;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+/**
+ * In-process LRU of the choices shown by itemset questions, so swiping back
+ * to a cascading select does not query the itemsets database again.
+ *
+ * An entry is keyed by the itemsets.csv path hash, the selection, its
+ * arguments and the form language, and holds the choices as {label, value}
+ * pairs in the order the query returned them. The cache is emptied whenever a form is
+ * loaded, and the entries of an itemsets.csv are dropped when it is reimported.
+ */
+public final class ItemsetResultCache {
+
+    private final static String t = "ItemsetResultCache";
+
+    // use at most 1/32nd of the heap for choices
+    private static final int MAX_BYTES = (int) Math.min(Integer.MAX_VALUE,
+            Runtime.getRuntime().maxMemory() / 32);
+    // approximate overhead of a String or array object
+    private static final int OBJECT_OVERHEAD = 16;
+
+    private static final LruCache<String, List<String[]>> sCache =
+            new LruCache<String, List<String[]>>(MAX_BYTES) {
+        @Override
+        protected int sizeOf(String key, List<String[]> choices) {
+            int size = 2 * key.length() + OBJECT_OVERHEAD;
+            for (String[] choice : choices) {
+                size += OBJECT_OVERHEAD;
+                for (String part : choice) {
+                    size += OBJECT_OVERHEAD + (part == null ? 0 : 2 * part.length());
+                }
+            }
+            return size;
+        }
+    };
+
+    private ItemsetResultCache() {
+    }
+
+    /**
+     * @return the key of a query of the itemsets.csv with this path hash
+     */
+    public static String getKey(String pathHash, String selection, String[] selectionArgs,
+            String language) {
+        StringBuilder key = new StringBuilder(pathHash);
+        key.append('\u0000').append(selection);
+        for (String arg : selectionArgs) {
+            key.append('\u0000').append(arg);
+        }
+        key.append('\u0000').append(language);
+        return key.toString();
+    }
+
+    /**
+     * @return the cached choices, as {label, value} pairs, or null
+     */
+    public static List<String[]> get(String key) {
+        return sCache.get(key);
+    }
+
+    public static void put(String key, List<String[]> choices) {
+        sCache.put(key, choices);
+    }
+
+    /**
+     * Drop the choices read from the itemsets.csv with this path hash.
+     */
+    public static void removeTable(String pathHash) {
+        String prefix = pathHash + '\u0000';
+        for (String key : sCache.snapshot().keySet()) {
+            if (key.startsWith(prefix)) {
+                sCache.remove(key);
+            }
+        }
+    }
+
+    public static void clear() {
+        sCache.evictAll();
+    }
+
+    /**
+     * Release memory according to the level passed to
+     * {@link ComponentCallbacks2#onTrimMemory(int)}.
+     */
+    public static void trimMemory(int level) {
+        if (level == ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            return;
+        }
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            clear();
+        }
+        Log.i(t, "Trimmed for level " + level + ": " + getStats());
+    }
+
+    public static String getStats() {
+        return "hits: " + sCache.hitCount() + ", misses: " + sCache.missCount()
+                + ", bytes held: " + sCache.size() + "/" + MAX_BYTES;
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.utilities;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+import org.javarosa.core.model.data.UncastData;
+import org.javarosa.core.model.instance.TreeElement;
+import org.kxml2.io.KXmlParser;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+/**
+ * Reads a saved instance into a tree of {@link TreeElement}s with a pull
+ * parser.
+ *
+ * This builds the same tree as XFormParser.restoreDataModel(), which the
+ * form loader used to call on the whole file read into a byte[]. That first
+ * built a kxml document of the entire instance. Here the file is streamed
+ * and each element goes straight into the tree, so neither the byte[] nor
+ * the document is ever allocated.
+ */
+public final class SavedInstanceParser {
+
+    private static final String NAMESPACE_JAVAROSA = "http://openrosa.org/javarosa";
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private SavedInstanceParser() {
+    }
+
+    /**
+     * @param instanceFile the saved instance
+     * @return the root of the saved instance
+     */
+    public static TreeElement parse(File instanceFile) throws IOException, XmlPullParserException {
+        InputStream is = null;
+        try {
+            is = new BufferedInputStream(new FileInputStream(instanceFile), BUFFER_SIZE);
+            KXmlParser parser = new KXmlParser();
+            parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+            parser.setInput(is, null);
+            return parse(parser);
+        } finally {
+            IOUtils.closeQuietly(is);
+        }
+    }
+
+    private static TreeElement parse(XmlPullParser parser) throws IOException,
+            XmlPullParserException {
+        List<Frame> stack = new ArrayList<Frame>();
+        TreeElement root = null;
+
+        int eventType = parser.getEventType();
+        while (eventType != XmlPullParser.END_DOCUMENT) {
+            switch (eventType) {
+                case XmlPullParser.START_TAG: {
+                    String name = parser.getName();
+                    Frame parent = stack.isEmpty() ? null : stack.get(stack.size() - 1);
+                    int multiplicity = (parent == null) ? 0 : parent.nextMultiplicity(name);
+
+                    TreeElement element = new TreeElement(name, multiplicity);
+                    for (int i = 0; i < parser.getAttributeCount(); i++) {
+                        String namespace = parser.getAttributeNamespace(i);
+                        String attrName = parser.getAttributeName(i);
+                        if (NAMESPACE_JAVAROSA.equals(namespace)
+                                && ("template".equals(attrName) || "recordset".equals(attrName))) {
+                            continue;
+                        }
+                        element.setAttribute(namespace, attrName, parser.getAttributeValue(i));
+                    }
+
+                    if (parent == null) {
+                        root = element;
+                    } else {
+                        parent.hasChildElements = true;
+                        parent.element.addChild(element);
+                    }
+                    stack.add(new Frame(element));
+                    break;
+                }
+                case XmlPullParser.TEXT:
+                case XmlPullParser.CDSECT:
+                case XmlPullParser.ENTITY_REF: {
+                    if (!stack.isEmpty()) {
+                        stack.get(stack.size() - 1).appendText(parser.getText());
+                    }
+                    break;
+                }
+                case XmlPullParser.END_TAG: {
+                    Frame frame = stack.remove(stack.size() - 1);
+                    // mixed content is ignored, as it is by the DOM based restore
+                    if (!frame.hasChildElements && frame.text != null) {
+                        String value = frame.text.toString().trim();
+                        if (value.length() > 0) {
+                            frame.element.setValue(new UncastData(value));
+                        }
+                    }
+                    break;
+                }
+                default:
+                    break;
+            }
+            eventType = parser.nextToken();
+        }
+
+        if (root == null) {
+            throw new XmlPullParserException("Saved instance has no root element");
+        }
+        return root;
+    }
+
+    /**
+     * Parse state of an element whose end tag has not been reached yet.
+     */
+    private static class Frame {
+        final TreeElement element;
+        boolean hasChildElements = false;
+        StringBuilder text = null;
+        // number of children seen so far by name, used for their multiplicity
+        Map<String, Integer> childCounts = null;
+
+        Frame(TreeElement element) {
+            this.element = element;
+        }
+
+        void appendText(String chunk) {
+            if (chunk == null) {
+                return;
+            }
+            if (text == null) {
+                text = new StringBuilder();
+            }
+            text.append(chunk);
+        }
+
+        int nextMultiplicity(String childName) {
+            if (childCounts == null) {
+                childCounts = new HashMap<String, Integer>();
+            }
+            Integer count = childCounts.get(childName);
+            int multiplicity = (count == null) ? 0 : count;
+            childCounts.put(childName, multiplicity + 1);
+            return multiplicity;
+        }
+    }
+}
@@ -23,9 +23,17 @@ import org.apache.commons.io.IOUtils;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 
 /**
@@ -54,6 +62,73 @@ public final class ZipUtils {
         }
     }
 
+    /**
+     * Extracts the files in the top folder of the zip file that the filter accepts.
+     */
+    public static void unzip(File zipFile, FilenameFilter filter) {
+        ZipInputStream zipInputStream = null;
+        try {
+            zipInputStream = new ZipInputStream(new FileInputStream(zipFile));
+            ZipEntry zipEntry;
+            while ((zipEntry = zipInputStream.getNextEntry()) != null) {
+                if (filter.accept(zipFile.getParentFile(), zipEntry.getName())) {
+                    doExtractInTheSameFolder(zipFile, zipInputStream, zipEntry);
+                }
+            }
+        } catch (Exception e) {
+            Log.e(t, e.getMessage(), e);
+        } finally {
+            IOUtils.closeQuietly(zipInputStream);
+        }
+    }
+
+    /**
+     * Lists the zip file from its central directory, without reading its entries.
+     *
+     * @return the names of the files in the top folder of the zip file
+     */
+    public static List<String> getFileNames(File zipFile) throws IOException {
+        ZipFile zip = new ZipFile(zipFile);
+        try {
+            List<String> fileNames = new ArrayList<String>();
+            Enumeration<? extends ZipEntry> zipEntries = zip.entries();
+            while (zipEntries.hasMoreElements()) {
+                ZipEntry zipEntry = zipEntries.nextElement();
+                String fileName = zipEntry.getName();
+                if (!zipEntry.isDirectory() && !fileName.contains("/") && !fileName.contains("\\")) {
+                    fileNames.add(fileName);
+                }
+            }
+            return fileNames;
+        } finally {
+            zip.close();
+        }
+    }
+
+    /**
+     * Reads a file straight out of the zip file, without extracting it.
+     *
+     * @return the content of the file, which closes the zip file when it is closed
+     */
+    public static InputStream openFile(File zipFile, String fileName) throws IOException {
+        final ZipFile zip = new ZipFile(zipFile);
+        ZipEntry zipEntry = zip.getEntry(fileName);
+        if (zipEntry == null) {
+            zip.close();
+            throw new FileNotFoundException(fileName + " is not in " + zipFile.getName());
+        }
+        return new FilterInputStream(zip.getInputStream(zipEntry)) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    zip.close();
+                }
+            }
+        };
+    }
+
     public static File extractFirstZipEntry(File zipFile, boolean deleteAfterUnzip) throws IOException {
         ZipInputStream zipInputStream = null;
         File targetFile = null;
@@ -17,6 +17,7 @@ package org.odk.collect.android.widgets;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 
 import org.javarosa.core.model.FormDef;
 import org.javarosa.core.model.condition.EvaluationContext;
@@ -25,12 +26,12 @@ import org.javarosa.core.model.data.StringData;
 import org.javarosa.core.model.instance.TreeElement;
 import org.javarosa.form.api.FormEntryPrompt;
 import org.javarosa.xpath.XPathNodeset;
-import org.javarosa.xpath.XPathParseTool;
 import org.javarosa.xpath.expr.XPathExpression;
-import org.javarosa.xpath.parser.XPathSyntaxException;
 import org.odk.collect.android.R;
 import org.odk.collect.android.application.Collect;
 import org.odk.collect.android.database.ItemsetDbAdapter;
+import org.odk.collect.android.logic.ItemsetQuery;
+import org.odk.collect.android.utilities.ItemsetResultCache;
 
 import android.content.Context;
 import android.database.Cursor;
@@ -78,76 +79,15 @@ public class ItemsetWidget extends QuestionWidget implements
 
         // "query" is what we're using to notify that this is an
         // itemset widget.
-        String nodesetStr = prompt.getQuestion().getAdditionalAttribute(null, "query");
+        String nodesetStr = prompt.getQuestion().getAdditionalAttribute(null,
+                ItemsetQuery.QUERY_ATTRIBUTE);
 
-        // parse out the list name, between the ''
-        String list_name = nodesetStr.substring(nodesetStr.indexOf("'") + 1,
-                nodesetStr.lastIndexOf("'"));
-
-        // isolate the string between between the [ ] characters
-        String queryString = nodesetStr.substring(nodesetStr.indexOf("[") + 1,
-                nodesetStr.lastIndexOf("]"));
-
-        StringBuilder selection = new StringBuilder();
-        // add the list name as the first argument, which will always be there
-        selection.append("list_name=?");
-
-        // check to see if there are any arguments
-        if (queryString.indexOf("=") != -1) {
-            selection.append(" and ");
-        }
-
-        // can't just split on 'and' or 'or' because they have different
-        // behavior, so loop through and break them off until we don't have any
-        // more
-        // must include the spaces in indexOf so we don't match words like
-        // "land"
-        int andIndex = -1;
-        int orIndex = -1;
-        ArrayList<String> arguments = new ArrayList<String>();
-        while ((andIndex = queryString.indexOf(" and ")) != -1
-                || (orIndex = queryString.indexOf(" or ")) != -1) {
-            if (andIndex != -1) {
-                String subString = queryString.substring(0, andIndex);
-                String pair[] = subString.split("=");
-                if (pair.length == 2) {
-                    selection.append(pair[0].trim() + "=? and ");
-                    arguments.add(pair[1].trim());
-                } else {
-                    // parse error
-                }
-                // move string forward to after " and "
-                queryString = queryString.substring(andIndex + 5, queryString.length());
-                andIndex = -1;
-            } else if (orIndex != -1) {
-                String subString = queryString.substring(0, orIndex);
-                String pair[] = subString.split("=");
-                if (pair.length == 2) {
-                    selection.append(pair[0].trim() + "=? or ");
-                    arguments.add(pair[1].trim());
-                } else {
-                    // parse error
-                }
-
-                // move string forward to after " or "
-                queryString = queryString.substring(orIndex + 4, queryString.length());
-                orIndex = -1;
-            }
-        }
-
-        // parse the last segment (or only segment if there are no 'and' or 'or'
-        // clauses
-        String pair[] = queryString.split("=");
-        if (pair.length == 2) {
-            selection.append(pair[0].trim() + "=?");
-            arguments.add(pair[1].trim());
-        }
-        if (pair.length == 1) {
-            // this is probably okay, because then you just list all items in
-            // the list
-        } else {
-            // parse error
-        }
+        ItemsetQuery query = Collect.getInstance().getFormController()
+                .getItemsetQuery(nodesetStr);
+        String list_name = query.getListName();
+        String selection = query.getSelection();
+        List<String> arguments = query.getArguments();
+        List<XPathExpression> expressions = query.getExpressions();
 
         // +1 is for the list_name
         String[] selectionArgs = new String[arguments.size() + 1];
@@ -155,37 +95,36 @@ public class ItemsetWidget extends QuestionWidget implements
         boolean nullArgs = false; // can't have any null arguments
         selectionArgs[0] = list_name; // first argument is always listname
 
+        FormDef form = Collect.getInstance().getFormController().getFormDef();
+        EvaluationContext ec = null;
+
         // loop through the arguments, evaluate any expressions
         // and build the query string for the DB
         for (int i = 0; i < arguments.size(); i++) {
-            XPathExpression xpr = null;
-            try {
-                xpr = XPathParseTool.parseXPath(arguments.get(i));
-            } catch (XPathSyntaxException e) {
-                e.printStackTrace();
+            XPathExpression xpr = expressions.get(i);
+            if (xpr == null) {
                 TextView error = new TextView(context);
                 error.setText("XPathParser Exception:  \"" + arguments.get(i) + "\"");
                 addView(error);
                 break;
             }
 
-            if (xpr != null) {
-                FormDef form = Collect.getInstance().getFormController().getFormDef();
+            if (ec == null) {
                 TreeElement mTreeElement = form.getMainInstance().resolveReference(prompt.getIndex().getReference());
-                EvaluationContext ec = new EvaluationContext(form.getEvaluationContext(),
+                ec = new EvaluationContext(form.getEvaluationContext(),
                         mTreeElement.getRef());
-                Object value = xpr.eval(form.getMainInstance(), ec);
-
-                if (value == null) {
-                    nullArgs = true;
-                } else {
-	                if (value instanceof XPathNodeset) {
-	                    XPathNodeset xpn = (XPathNodeset) value;
-	                    value = xpn.getValAt(0);
-	                }
-
-	                selectionArgs[i + 1] = value.toString();
+            }
+            Object value = xpr.eval(form.getMainInstance(), ec);
+
+            if (value == null) {
+                nullArgs = true;
+            } else {
+                if (value instanceof XPathNodeset) {
+                    XPathNodeset xpn = (XPathNodeset) value;
+                    value = xpn.getValAt(0);
                 }
+
+                selectionArgs[i + 1] = value.toString();
             }
         }
 
@@ -195,57 +134,44 @@ public class ItemsetWidget extends QuestionWidget implements
             // so just leave the screen blank
             // TODO: put an error?
         } else if (itemsetFile.exists()) {
-            ItemsetDbAdapter ida = new ItemsetDbAdapter();
-            ida.open();
+            // identifies the itemsets of this form in the cache
+            String pathHash = ItemsetDbAdapter.getMd5FromString(itemsetFile.getAbsolutePath());
+
+            // try to get the value associated with the label:lang
+            // string if that doen't exist, then just use label
+            String lang = "";
+            if (Collect.getInstance().getFormController().getLanguages() != null
+                    && Collect.getInstance().getFormController().getLanguages().length > 0) {
+                lang = Collect.getInstance().getFormController().getLanguage();
+            }
 
-            // name of the itemset table for this form
-            String pathHash = ItemsetDbAdapter.getMd5FromString(itemsetFile.getAbsolutePath()); 
-            try {
-                Cursor c = ida.query(pathHash, selection.toString(), selectionArgs);
-                if (c != null) {
-                    c.move(-1);
-                    while (c.moveToNext()) {
-                        String label = "";
-                        String val = "";
-                        // try to get the value associated with the label:lang
-                        // string if that doen't exist, then just use label
-                        String lang = "";
-                        if (Collect.getInstance().getFormController().getLanguages() != null
-                                && Collect.getInstance().getFormController().getLanguages().length > 0) {
-                            lang = Collect.getInstance().getFormController().getLanguage();
-                        }
-
-                        // apparently you only need the double quotes in the
-                        // column name when creating the column with a :
-                        // included
-                        String labelLang = "label" + "::" + lang;
-                        int langCol = c.getColumnIndex(labelLang);
-                        if (langCol == -1) {
-                            label = c.getString(c.getColumnIndex("label"));
-                        } else {
-                            label = c.getString(c.getColumnIndex(labelLang));
-                        }
-
-                        // the actual value is stored in name
-                        val = c.getString(c.getColumnIndex("name"));
-                        mAnswers.put(label, val);
-
-                        RadioButton rb = new RadioButton(context);
-                        rb.setOnCheckedChangeListener(this);
-                        rb.setText(label);
-                        rb.setTextSize(mAnswerFontsize);
-                        mButtons.addView(rb);
-                        // have to add it to the radiogroup before checking it,
-                        // else it lets two buttons be checked...
-                        if (currentAnswer != null
-                                && val.compareTo(currentAnswer) == 0) {
-                            rb.setChecked(true);
-                        }
-                    }
-                    c.close();
+            String cacheKey = ItemsetResultCache.getKey(pathHash, selection, selectionArgs, lang);
+            List<String[]> choices = ItemsetResultCache.get(cacheKey);
+            if (choices == null) {
+                choices = queryChoices(itemsetFile, selection, selectionArgs, lang);
+                if (choices != null) {
+                    ItemsetResultCache.put(cacheKey, choices);
+                } else {
+                    choices = new ArrayList<String[]>();
+                }
+            }
+
+            for (String[] choice : choices) {
+                String label = choice[0];
+                String val = choice[1];
+                mAnswers.put(label, val);
+
+                RadioButton rb = new RadioButton(context);
+                rb.setOnCheckedChangeListener(this);
+                rb.setText(label);
+                rb.setTextSize(mAnswerFontsize);
+                mButtons.addView(rb);
+                // have to add it to the radiogroup before checking it,
+                // else it lets two buttons be checked...
+                if (currentAnswer != null
+                        && val.compareTo(currentAnswer) == 0) {
+                    rb.setChecked(true);
                 }
-            } finally {
-                ida.close();
             }
 
             addView(mButtons);
@@ -257,6 +183,46 @@ public class ItemsetWidget extends QuestionWidget implements
 
     }
 
+    /**
+     * @return the {label, value} pairs of the rows selected from the itemsets
+     *         table, or null if the itemsets have not been imported
+     */
+    private List<String[]> queryChoices(File itemsetFile, String selection,
+            String[] selectionArgs, String lang) {
+        List<String[]> choices = new ArrayList<String[]>();
+        ItemsetDbAdapter ida = new ItemsetDbAdapter();
+        ida.open();
+        try {
+            // name of the itemset table for this form
+            String tableHash = ida.getTableHash(itemsetFile.getAbsolutePath());
+            if (tableHash == null) {
+                return null;
+            }
+            Cursor c = ida.query(tableHash, selection, selectionArgs);
+            if (c != null) {
+                // apparently you only need the double quotes in the
+                // column name when creating the column with a :
+                // included
+                String labelLang = "label" + "::" + lang;
+                int langCol = c.getColumnIndex(labelLang);
+                int labelCol = (langCol == -1) ? c.getColumnIndex("label") : langCol;
+                // the actual value is stored in name
+                int nameCol = c.getColumnIndex("name");
+
+                c.move(-1);
+                while (c.moveToNext()) {
+                    choices.add(new String[] {
+                            c.getString(labelCol), c.getString(nameCol)
+                    });
+                }
+                c.close();
+            }
+        } finally {
+            ida.close();
+        }
+        return choices;
+    }
+
     @Override
     public void clearAnswer() {
         mButtons.clearCheck();
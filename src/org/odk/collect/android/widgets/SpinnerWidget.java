@@ -14,6 +14,7 @@
 
 package org.odk.collect.android.widgets;
 
+import java.util.AbstractList;
 import java.util.List;
 
 import org.javarosa.core.model.SelectChoice;
@@ -25,6 +26,7 @@ import org.javarosa.xpath.expr.XPathFuncExpr;
 import org.odk.collect.android.R;
 import org.odk.collect.android.application.Collect;
 import org.odk.collect.android.external.ExternalDataUtil;
+import org.odk.collect.android.external.handler.ExternalSelectChoiceList;
 
 import android.content.Context;
 import android.graphics.Color;
@@ -50,7 +52,7 @@ import android.widget.TextView;
 public class SpinnerWidget extends QuestionWidget {
     List<SelectChoice> mItems;
     Spinner spinner;
-    String[] choices;
+    List<String> choices;
     private static final int BROWN = 0xFF936931;
 
 
@@ -66,11 +68,23 @@ public class SpinnerWidget extends QuestionWidget {
         }
 
         spinner = new Spinner(context);
-        choices = new String[mItems.size()+1];
-        for (int i = 0; i < mItems.size(); i++) {
-            choices[i] = prompt.getSelectChoiceText(mItems.get(i));
-        }
-        choices[mItems.size()] = getContext().getString(R.string.select_one);
+        // the labels are only read as the spinner shows them, so the choices of a search()
+        // are read from the dataset a page at a time as the list is scrolled
+        final String selectOne = getContext().getString(R.string.select_one);
+        choices = new AbstractList<String>() {
+            @Override
+            public String get(int location) {
+                if (location == mItems.size()) {
+                    return selectOne;
+                }
+                return mPrompt.getSelectChoiceText(mItems.get(location));
+            }
+
+            @Override
+            public int size() {
+                return mItems.size() + 1;
+            }
+        };
 
         // The spinner requires a custom adapter. It is defined below
         SpinnerAdapter adapter =
@@ -89,11 +103,18 @@ public class SpinnerWidget extends QuestionWidget {
         }
 
         spinner.setSelection(mItems.size());
-        if (s != null) {
+        if (s != null && mItems instanceof ExternalSelectChoiceList) {
+            // a search() result is looked up in the dataset, not read page by page
+            int i = ((ExternalSelectChoiceList) mItems).indexOfValue(s);
+            if (i != -1) {
+                spinner.setSelection(i);
+            }
+        } else if (s != null) {
             for (int i = 0; i < mItems.size(); ++i) {
                 String sMatch = mItems.get(i).getValue();
                 if (sMatch.equals(s)) {
                     spinner.setSelection(i);
+                    break;
                 }
             }
         }
@@ -155,13 +176,13 @@ public class SpinnerWidget extends QuestionWidget {
     // Defines how to display the select answers
     private class SpinnerAdapter extends ArrayAdapter<String> {
         Context context;
-        String[] items = new String[] {};
+        List<String> items;
         int textUnit;
         float textSize;
 
 
         public SpinnerAdapter(final Context context, final int textViewResourceId,
-                final String[] objects, int textUnit, float textSize) {
+                final List<String> objects, int textUnit, float textSize) {
             super(context, textViewResourceId, objects);
             this.items = objects;
             this.context = context;
@@ -183,7 +204,7 @@ public class SpinnerWidget extends QuestionWidget {
             tv.setTextSize(textUnit, textSize);
             tv.setBackgroundColor(Color.WHITE);
         	tv.setPadding(10, 10, 10, 10); // Are these values OK?
-            if (position == items.length-1) {
+            if (position == items.size()-1) {
             	tv.setText(parent.getContext().getString(R.string.clear_answer));
             	tv.setTextColor(BROWN);
         		tv.setTypeface(null, Typeface.NORMAL);
@@ -191,7 +212,7 @@ public class SpinnerWidget extends QuestionWidget {
             		tv.setBackgroundColor(Color.LTGRAY);
             	}
             } else {
-                tv.setText(items[position]);
+                tv.setText(items.get(position));
                 tv.setTextColor(Color.BLACK);
             	tv.setTypeface(null, (spinner.getSelectedItemPosition() == position) 
             							? Typeface.BOLD : Typeface.NORMAL);
@@ -208,11 +229,11 @@ public class SpinnerWidget extends QuestionWidget {
             }
 
             TextView tv = (TextView) convertView.findViewById(android.R.id.text1);
-            tv.setText(items[position]);
+            tv.setText(items.get(position));
             tv.setTextSize(textUnit, textSize);
             tv.setTextColor(Color.BLACK);
         	tv.setTypeface(null, Typeface.BOLD);
-            if (position == items.length-1) {
+            if (position == items.size()-1) {
             	tv.setTextColor(BROWN);
             	tv.setTypeface(null, Typeface.NORMAL);
             }